@@ -0,0 +1,564 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.BTreeFileEncoder.TupleComparator;
+
+/**
+ * BTreeBulkLoader builds a B+ tree file from tuples that arrive in any
+ * order, without holding them all in memory.
+ * <p>
+ * The tuples are sorted with an external merge sort: runs of at most
+ * runSize tuples are sorted in memory and spilled to temporary files, and
+ * the runs are merged, mergeFanIn at a time. The sorted stream is then
+ * written out bottom-up. The leaf pages come first, in page order, followed
+ * by each level of internal pages, so every level of the tree is written
+ * sequentially and only one page per level is held in memory.
+ * <p>
+ * Pages are filled to the leaf and internal fill factors rather than
+ * completely, which leaves room for inserts before pages start to split.
+ * The last two pages of each level share what is left over, so that with
+ * fill factors of one half or more no page but the root is less than half
+ * full. With fill factors of 1.0 the tree has the same shape as the one
+ * BTreeFileEncoder used to build in memory.
+ */
+public class BTreeBulkLoader {
+
+	/** Default fraction of each page filled by the loader */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/** Default number of tuples sorted in memory at a time */
+	public static final int DEFAULT_RUN_SIZE = 100000;
+
+	/** Default number of runs merged at a time */
+	public static final int DEFAULT_MERGE_FAN_IN = 64;
+
+	/** Number of leaf pages handed to the file in one write */
+	private static final int WRITE_BATCH = 32;
+
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+	/** Enough levels for any number of pages a BTreeFile can address */
+	private static final int MAX_HEIGHT = 32;
+
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final TupleComparator comparator;
+
+	private double leafFill = DEFAULT_FILL_FACTOR;
+	private double internalFill = DEFAULT_FILL_FACTOR;
+	private int runSize = DEFAULT_RUN_SIZE;
+	private int mergeFanIn = DEFAULT_MERGE_FAN_IN;
+
+	/**
+	 * Create a loader for tuples of the given type.
+	 *
+	 * @param td - the type of the tuples to load
+	 * @param keyField - the index of the field the tree is keyed on
+	 */
+	public BTreeBulkLoader(TupleDesc td, int keyField) {
+		this(td, new int[] { keyField });
+	}
+
+	/**
+	 * Create a loader for a tree keyed on several fields, whose tuples are
+	 * sorted lexicographically on them.
+	 *
+	 * @param td - the type of the tuples to load
+	 * @param keyFields - the indexes of the fields the tree is keyed on,
+	 *            leading field first
+	 */
+	public BTreeBulkLoader(TupleDesc td, int[] keyFields) {
+		this.td = td;
+		this.keyFields = keyFields.clone();
+		this.comparator = new TupleComparator(keyFields);
+	}
+
+	/**
+	 * Set how full the loader makes leaf and internal pages.
+	 *
+	 * @param leafFill - fraction of the tuple slots of each leaf page to fill
+	 * @param internalFill - fraction of the entries of each internal page to fill
+	 */
+	public void setFillFactors(double leafFill, double internalFill) {
+		if(leafFill <= 0 || leafFill > 1 || internalFill <= 0 || internalFill > 1)
+			throw new IllegalArgumentException("fill factors must be in (0, 1]");
+		this.leafFill = leafFill;
+		this.internalFill = internalFill;
+	}
+
+	/**
+	 * Set the number of tuples sorted in memory before they are spilled to
+	 * a run on disk. This bounds the memory the load needs.
+	 */
+	public void setRunSize(int runSize) {
+		if(runSize < 1)
+			throw new IllegalArgumentException("run size must be positive");
+		this.runSize = runSize;
+	}
+
+	/**
+	 * Set the number of runs merged at a time. More runs than this are
+	 * merged in several passes.
+	 */
+	public void setMergeFanIn(int mergeFanIn) {
+		if(mergeFanIn < 2)
+			throw new IllegalArgumentException("merge fan-in must be at least 2");
+		this.mergeFanIn = mergeFanIn;
+	}
+
+	/**
+	 * Build an index over an existing file, e.g. a HeapFile.
+	 *
+	 * @param tid - the transaction to read the source file with
+	 * @param source - the file to read the tuples from
+	 * @param bf - the empty BTreeFile to build, already in the Catalog
+	 * @return bf
+	 */
+	public BTreeFile load(TransactionId tid, DbFile source, BTreeFile bf)
+			throws IOException, DbException, TransactionAbortedException {
+		DbFileIterator it = source.iterator(tid);
+		it.open();
+		try {
+			return load(it, bf);
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Build a B+ tree from the tuples of an open iterator.
+	 *
+	 * @param it - the tuples to load, in any order
+	 * @param bf - the empty BTreeFile to build, already in the Catalog
+	 * @return bf
+	 */
+	public BTreeFile load(DbFileIterator it, BTreeFile bf)
+			throws IOException, DbException, TransactionAbortedException {
+		if(bf.getFile().length() > 0)
+			throw new DbException("bulk load needs an empty file");
+
+		// sort runs in memory and spill all but the last one
+		ArrayList<Tuple> run = new ArrayList<Tuple>();
+		List<File> runs = new ArrayList<File>();
+		long numTuples = 0;
+		try {
+			while(it.hasNext()) {
+				run.add(it.next());
+				numTuples++;
+				if(run.size() == runSize) {
+					runs.add(spill(run));
+					run.clear();
+				}
+			}
+			Collections.sort(run, comparator);
+
+			Builder builder = new Builder(bf, numTuples);
+			if(runs.isEmpty()) {
+				for(Tuple t : run)
+					builder.add(t);
+			}
+			else {
+				if(!run.isEmpty())
+					runs.add(spill(run));
+				run = null;
+				while(runs.size() > mergeFanIn)
+					runs = mergePass(runs);
+				Merger merger = new Merger(runs);
+				try {
+					Tuple t;
+					while((t = merger.next()) != null)
+						builder.add(t);
+				} finally {
+					merger.close();
+				}
+			}
+			builder.finish();
+		} finally {
+			for(File f : runs)
+				f.delete();
+		}
+		return bf;
+	}
+
+	/**
+	 * Sort the tuples and write them to a new run file.
+	 */
+	private File spill(ArrayList<Tuple> tuples) throws IOException {
+		Collections.sort(tuples, comparator);
+		File f = File.createTempFile("btreerun", ".dat");
+		boolean written = false;
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(f), IO_BUFFER_SIZE));
+			try {
+				dos.writeLong(tuples.size());
+				for(Tuple t : tuples)
+					writeTuple(dos, t);
+			} finally {
+				dos.close();
+			}
+			written = true;
+		} finally {
+			// the caller deletes the runs it gets back, but never sees this one
+			if(!written)
+				f.delete();
+		}
+		return f;
+	}
+
+	private void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+		for(int i = 0; i < td.numFields(); i++)
+			t.getField(i).serialize(dos);
+	}
+
+	/**
+	 * Merge the runs in groups of mergeFanIn.
+	 *
+	 * @return the merged runs
+	 */
+	private List<File> mergePass(List<File> runs) throws IOException {
+		List<File> merged = new ArrayList<File>();
+		boolean done = false;
+		try {
+			for(int i = 0; i < runs.size(); i += mergeFanIn) {
+				List<File> group = runs.subList(i, Math.min(i + mergeFanIn, runs.size()));
+				File f = File.createTempFile("btreerun", ".dat");
+				merged.add(f);
+				Merger merger = new Merger(group);
+				DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(f), IO_BUFFER_SIZE));
+				try {
+					dos.writeLong(merger.size());
+					Tuple t;
+					while((t = merger.next()) != null)
+						writeTuple(dos, t);
+				} finally {
+					dos.close();
+					merger.close();
+				}
+				for(File run : group)
+					run.delete();
+			}
+			done = true;
+		} finally {
+			// on failure the caller still deletes the input runs, but not ours
+			if(!done) {
+				for(File f : merged)
+					f.delete();
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Reads the tuples of one run file in order.
+	 */
+	private class RunReader {
+		private final int index;
+		private final DataInputStream dis;
+		private long remaining;
+		Tuple current;
+
+		RunReader(File f, int index) throws IOException {
+			this.index = index;
+			this.dis = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(f), IO_BUFFER_SIZE));
+			this.remaining = dis.readLong();
+		}
+
+		/**
+		 * Move to the next tuple of the run; current is null at the end.
+		 */
+		void advance() throws IOException {
+			if(remaining == 0) {
+				current = null;
+				return;
+			}
+			remaining--;
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++)
+					t.setField(i, td.getFieldType(i).parse(dis));
+			} catch(ParseException e) {
+				throw new IOException("corrupt run file", e);
+			}
+			current = t;
+		}
+	}
+
+	/**
+	 * Merges sorted runs into one sorted stream. Tuples with equal keys come
+	 * out in the order of their runs.
+	 */
+	private class Merger {
+		private final List<RunReader> readers = new ArrayList<RunReader>();
+		private final PriorityQueue<RunReader> heap;
+		private long size;
+
+		Merger(List<File> runs) throws IOException {
+			heap = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+				public int compare(RunReader r1, RunReader r2) {
+					int cmp = comparator.compare(r1.current, r2.current);
+					return cmp != 0 ? cmp : r1.index - r2.index;
+				}
+			});
+			try {
+				for(File f : runs) {
+					RunReader r = new RunReader(f, readers.size());
+					readers.add(r);
+					size += r.remaining;
+					r.advance();
+					if(r.current != null)
+						heap.add(r);
+				}
+			} catch(IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return the total number of tuples in the runs
+		 */
+		long size() {
+			return size;
+		}
+
+		/**
+		 * @return the next tuple in key order, or null at the end
+		 */
+		Tuple next() throws IOException {
+			RunReader r = heap.poll();
+			if(r == null)
+				return null;
+			Tuple t = r.current;
+			r.advance();
+			if(r.current != null)
+				heap.add(r);
+			return t;
+		}
+
+		void close() throws IOException {
+			for(RunReader r : readers)
+				r.dis.close();
+		}
+	}
+
+	/**
+	 * Writes sorted tuples out as a B+ tree. The total number of tuples is
+	 * known up front, so the number of pages on every level, and with it the
+	 * page number of every page, can be worked out before anything is
+	 * written: leaf pages are numbered from 1, each level of internal pages
+	 * follows the level below it, and the root comes last.
+	 */
+	private class Builder {
+		private final BTreeFile bf;
+		private final int tableid;
+		private final int npagebytes = BufferPool.getPageSize();
+		private final Type[] typeAr;
+		private final int keySize;
+
+		// per level, 0 being the leaves: number of items (tuples or child
+		// pages), items per page, number of pages, items on the last page
+		// and page number of the first page
+		private final long[] items = new long[MAX_HEIGHT];
+		private final int[] target = new int[MAX_HEIGHT];
+		private final int[] pages = new int[MAX_HEIGHT];
+		private final long[] tail = new long[MAX_HEIGHT];
+		private final int[] first = new int[MAX_HEIGHT];
+		private int height;
+
+		// per level: the page being filled, the number of items added so far
+		// and the number of items that fill the pages up to the current one
+		private final int[] page = new int[MAX_HEIGHT];
+		private final long[] added = new long[MAX_HEIGHT];
+		private final long[] end = new long[MAX_HEIGHT];
+
+		private final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		private final ArrayList<ArrayList<Field>> keys = new ArrayList<ArrayList<Field>>();
+		private final ArrayList<ArrayList<Integer>> children = new ArrayList<ArrayList<Integer>>();
+		private final ArrayList<Page> batch = new ArrayList<Page>();
+
+		Builder(BTreeFile bf, long numTuples) {
+			this.bf = bf;
+			this.tableid = bf.getId();
+			this.typeAr = new Type[td.numFields()];
+			for(int i = 0; i < typeAr.length; i++)
+				typeAr[i] = td.getFieldType(i);
+
+			// leaf capacity, as in BTreeLeafPage.getMaxTuples()
+			int maxTuples = (npagebytes * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+			// internal capacity, as in BTreeInternalPage.getMaxEntries()
+			int keySize = 0;
+			for(int f : keyFields)
+				keySize += typeAr[f].getLen();
+			this.keySize = keySize;
+			int maxEntries = (npagebytes * 8 - 2 * BTreeInternalPage.INDEX_SIZE * 8 - 8 - 1) /
+					(keySize * 8 + BTreeInternalPage.INDEX_SIZE * 8 + 1);
+
+			// the leaves hold the tuples, every other level the pages below it
+			int next = 1;
+			long n = numTuples;
+			do {
+				if(height == 0)
+					plan(height, n, Math.max(1, (int) (maxTuples * leafFill)), maxTuples / 2);
+				else
+					plan(height, n, Math.max(2, (int) (maxEntries * internalFill) + 1), maxEntries / 2 + 1);
+				first[height] = next;
+				next += pages[height];
+				end[height] = start(height, 1);
+				keys.add(new ArrayList<Field>());
+				children.add(new ArrayList<Integer>());
+				n = pages[height];
+				height++;
+			} while(n > 1);
+		}
+
+		/**
+		 * Work out the pages of a level of n items: full pages of t items,
+		 * and the last two pages sharing the rest, the way the in-memory
+		 * encoder split them. If either of those would get less than min
+		 * items, the rest goes into one page instead.
+		 */
+		private void plan(int level, long n, int t, int min) {
+			items[level] = n;
+			target[level] = t;
+			if(n <= t) {
+				pages[level] = 1;
+				tail[level] = n;
+				return;
+			}
+			long p = (n + t - 1) / t;
+			long rest = n - (p - 2) * t;
+			// leaves split the rest in half; internal pages push a key up,
+			// which leaves the extra child on the first of the two
+			long share = (level == 0 ? rest / 2 : (rest - 1) / 2 + 1);
+			if(share < min || rest - share < min) {
+				p--;
+				tail[level] = rest;
+			}
+			else {
+				tail[level] = rest - share;
+			}
+			if(p > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("too many tuples for a B+ tree file");
+			pages[level] = (int) p;
+		}
+
+		/**
+		 * @return the number of items on the pages of a level before page p
+		 */
+		private long start(int level, long p) {
+			if(p >= pages[level])
+				return items[level];
+			if(p == pages[level] - 1)
+				return items[level] - tail[level];
+			return p * target[level];
+		}
+
+		/**
+		 * @return the id of the parent of page p of a level
+		 */
+		private BTreePageId parentId(int level, int p) {
+			if(level == height - 1)
+				return BTreeRootPtrPage.getId(tableid);
+			int up = level + 1;
+			int q = (p >= items[up] - tail[up] ? pages[up] - 1 : p / target[up]);
+			return new BTreePageId(tableid, first[up] + q, BTreePageId.INTERNAL);
+		}
+
+		void add(Tuple t) throws IOException, DbException {
+			tuples.add(t);
+			if(++added[0] == end[0])
+				writeLeaf();
+		}
+
+		private void addChild(int level, int child, Field minKey) throws IOException, DbException {
+			keys.get(level).add(minKey);
+			children.get(level).add(child);
+			if(++added[level] == end[level])
+				writeInternal(level);
+		}
+
+		private void writeLeaf() throws IOException, DbException {
+			int p = page[0];
+			BTreePageId pid = new BTreePageId(tableid, first[0] + p, BTreePageId.LEAF);
+			byte[] data = BTreeFileEncoder.convertToLeafPage(tuples, npagebytes,
+					td.numFields(), typeAr, keyFields);
+			BTreeLeafPage leaf = new BTreeLeafPage(pid, data, keyFields);
+			leaf.setParentId(parentId(0, p));
+			if(p > 0)
+				leaf.setLeftSiblingId(new BTreePageId(tableid, pid.pageNumber() - 1, BTreePageId.LEAF));
+			if(p < pages[0] - 1)
+				leaf.setRightSiblingId(new BTreePageId(tableid, pid.pageNumber() + 1, BTreePageId.LEAF));
+			batch.add(leaf);
+			if(batch.size() == WRITE_BATCH)
+				flushBatch();
+
+			Field minKey = tuples.isEmpty() ? null : leaf.getKey(tuples.get(0));
+			tuples.clear();
+			page[0]++;
+			end[0] = start(0, page[0] + 1);
+			if(height > 1)
+				addChild(1, pid.pageNumber(), minKey);
+		}
+
+		private void writeInternal(int level) throws IOException, DbException {
+			int p = page[level];
+			BTreePageId pid = new BTreePageId(tableid, first[level] + p, BTreePageId.INTERNAL);
+			int childCategory = (level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+			ArrayList<Field> pageKeys = keys.get(level);
+			ArrayList<Integer> pageChildren = children.get(level);
+
+			// the key of the first child is pushed up to the parent
+			ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+			for(int i = 1; i < pageChildren.size(); i++) {
+				entries.add(new BTreeEntry(pageKeys.get(i),
+						new BTreePageId(tableid, pageChildren.get(i - 1), childCategory),
+						new BTreePageId(tableid, pageChildren.get(i), childCategory)));
+			}
+			byte[] data = BTreeFileEncoder.convertToInternalPage(entries, npagebytes,
+					keySize, childCategory);
+			BTreeInternalPage internal = new BTreeInternalPage(pid, data, keyFields);
+			internal.setParentId(parentId(level, p));
+			bf.writePage(internal);
+
+			Field minKey = pageKeys.get(0);
+			pageKeys.clear();
+			pageChildren.clear();
+			page[level]++;
+			end[level] = start(level, page[level] + 1);
+			if(level < height - 1)
+				addChild(level + 1, pid.pageNumber(), minKey);
+		}
+
+		private void flushBatch() throws IOException {
+			if(!batch.isEmpty()) {
+				bf.writePages(batch);
+				batch.clear();
+			}
+		}
+
+		/**
+		 * Write out what is left and point the root pointer page at the root.
+		 */
+		void finish() throws IOException, DbException {
+			// an empty tree is a single empty leaf
+			if(items[0] == 0)
+				writeLeaf();
+			flushBatch();
+			for(int i = 0; i < height; i++) {
+				if(page[i] != pages[i])
+					throw new DbException("bulk load wrote " + page[i] + " of " + pages[i] + " pages on level " + i);
+			}
+			int top = height - 1;
+			int rootCategory = (top > 0 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+			byte[] rootPtrBytes = BTreeFileEncoder.convertToRootPtrPage(first[top], rootCategory, 0);
+			bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
+		}
+	}
+
+}
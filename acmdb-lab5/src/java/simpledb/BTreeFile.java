@@ -3,6 +3,7 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 
 import simpledb.Predicate.Op;
 
@@ -22,9 +23,11 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final FileHandle handle;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private int[] keyFields;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,9 +38,27 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields. Tuples are ordered
+	 * lexicographically on those fields, and the keys of the tree are
+	 * CompositeFields; an IndexPredicate on a CompositeField with fewer
+	 * fields matches every key that starts with it.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, leading field first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @see CompositeField
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
 		this.f = f;
+		this.handle = new FileHandle(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
 	}
 
@@ -79,46 +100,25 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(pageBuf, 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(pageBuf, pageOffset(id.pageNumber()));
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -128,17 +128,31 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * Read exactly pageBuf.length bytes at the given file offset
+	 */
+	private void readFully(byte[] pageBuf, long offset) throws IOException {
+		int retval = handle.read(pageBuf, offset);
+		if (retval == -1) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (retval < pageBuf.length) {
+			throw new IllegalArgumentException("Unable to read "
+					+ pageBuf.length + " bytes from BTreeFile");
+		}
+	}
+
+	/**
+	 * @return the file offset of the page with the given number. Page 0 is the
+	 * root pointer page, which is smaller than the other pages.
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -149,15 +163,40 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			handle.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			handle.write(data, pageOffset(id.pageNumber()));
+		}
+	}
+
+	/**
+	 * Write several pages to disk, each run of pages with consecutive page
+	 * numbers in a single write.  The root pointer page is smaller than the
+	 * others and is written on its own.
+	 * 
+	 * @param pages - the pages to write, sorted by page number
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		int i = 0;
+		while (i < pages.size()) {
+			BTreePageId first = (BTreePageId) pages.get(i).getId();
+			if(first.pgcateg() == BTreePageId.ROOT_PTR) {
+				writePage(pages.get(i++));
+				continue;
+			}
+			int j = i + 1;
+			while(j < pages.size()
+					&& pages.get(j).getId().pageNumber() == pages.get(j - 1).getId().pageNumber() + 1) {
+				j++;
+			}
+			ByteBuffer[] run = new ByteBuffer[j - i];
+			for(int k = i; k < j; k++) {
+				run[k - i] = ByteBuffer.wrap(pages.get(k).getPageData());
+			}
+			handle.write(run, pageOffset(first.pageNumber()));
+			i = j;
 		}
 	}
 	
@@ -166,7 +205,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((handle.size() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -176,6 +219,24 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on,
+	 * leading field first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple in this B+ tree: its key field, or a
+	 * CompositeField of its key fields if the tree is keyed on several
+	 */
+	public Field getKey(Tuple t) {
+		if(keyFields.length == 1)
+			return t.getField(keyField);
+		return CompositeField.of(t, keyFields);
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -199,17 +260,7 @@ public class BTreeFile implements DbFile {
 			return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
 		}
 		BTreeInternalPage current_page = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		BTreeInternalPageIterator it = (BTreeInternalPageIterator) current_page.iterator();
-		BTreeEntry entry = it.next();
-		BTreePageId current_id = null;
-		if (f == null) {
-			current_id = entry.getLeftChild();
-		}
-		else {
-			while (f.compare(Op.GREATER_THAN, entry.getKey()) && it.hasNext()) entry = it.next();
-			if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) current_id = entry.getLeftChild();
-			else current_id = entry.getRightChild();
-		}
+		BTreePageId current_id = current_page.findChild(f);
 		// some code goes here
         return findLeafPage(tid, dirtypages, current_id, perm, f);
 	}
@@ -293,7 +344,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// midkey ? the i or the i+1
-		Field midkey = tuplesToMove[count - 1].getField(keyField);
+		Field midkey = getKey(tuplesToMove[count - 1]);
 
 		BTreeInternalPage parent_page = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midkey);
 		parent_page.insertEntry(new BTreeEntry(midkey, page.getId(), split_page.getId()));
@@ -535,9 +586,9 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, getKey(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));	
 		}
 
 		// insert the tuple into the leaf page
@@ -684,7 +735,7 @@ public class BTreeFile implements DbFile {
 				page.insertTuple(tuplesToMove[i]);
 
 			}
-			Field midkey = it.next().getField(keyField);
+			Field midkey = getKey(it.next());
 			entry.setKey(midkey);
 			parent.updateEntry(entry);
 		}
@@ -700,7 +751,7 @@ public class BTreeFile implements DbFile {
 				page.insertTuple(tuplesToMove[i]);
 
 			}
-			Field midkey = tuplesToMove[count-1].getField(keyField);
+			Field midkey = getKey(tuplesToMove[count-1]);
 			entry.setKey(midkey);
 			parent.updateEntry(entry);
 		}
@@ -1056,15 +1107,12 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(handle.size() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				handle.write(emptyRootPtrData, 0);
+				handle.write(emptyLeafData, pageOffset(1));
 			}
 		}
 
@@ -1118,15 +1166,10 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+			// create the new page
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			long offset = handle.append(emptyData);
+			emptyPageNo = (int) ((offset - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize()) + 1;
 		}
 
 		return emptyPageNo; 
@@ -1155,10 +1198,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		handle.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1400,8 +1440,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		}
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			it = curp.iterator();
+			return;
 		}
-		it = curp.iterator();
+		// skip the tuples with smaller keys; the rest are filtered in readNext
+		int slot = curp.findFirstSlot(ipred.getField());
+		it = slot < 0 ? Collections.<Tuple>emptyIterator() : curp.iterator(slot);
 	}
 
 	/**
@@ -1417,7 +1461,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = f.getKey(t);
+				if (key.compare(ipred.getOp(), ipred.getField())) {
+					if (ipred.getUpperOp() != null && !key.compare(ipred.getUpperOp(), ipred.getUpperField())) {
+						// past the upper bound of the range
+						return null;
+					}
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1426,7 +1475,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
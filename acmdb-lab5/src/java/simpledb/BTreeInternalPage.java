@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.Predicate.Op;
 
@@ -21,6 +22,10 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// the used entry slots (1 and up) in order; built when first needed
+	// after a change
+	private volatile int[] usedSlots;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -66,7 +71,20 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on several fields; its
+	 * keys are CompositeFields.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, leading field first
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -108,14 +126,27 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		// the bytes we were built from are the before-image; keeping a copy
+		// of them is cheaper than encoding the page again
+		synchronized(oldDataLock)
+		{
+			oldData = data.clone();
+		}
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(getKeySize());
+	}
+
+	/** 
+	 * Retrieve the maximum number of entries an internal page with keys of
+	 * the given size can hold.
+	 * @param keySize - the number of bytes of a key
+	 */
+	static int getMaxEntries(int keySize) {
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -145,7 +176,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -157,7 +188,7 @@ public class BTreeInternalPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
@@ -168,7 +199,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +212,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -232,105 +263,41 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		// a new array is all zeroes, so empty slots and the padding at the
+		// end need no writes at all
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteBuffer buf = ByteBuffer.wrap(data);
 
 		// write out the parent pointer
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		buf.putInt(parent);
 
 		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		buf.put((byte) childCategory);
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
-		}
+		buf.put(header);
 
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
+		int keySize = getKeySize();
+		int start = buf.position();
 		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
+			if (!isSlotUsed(i))
 				continue;
-			}
-
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
+			buf.position(start + (i-1) * keySize);
+			keys[i].serialize(buf);
 		}
 
 		// create the child pointers
+		start += (keys.length - 1) * keySize;
 		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
+			if (!isSlotUsed(i))
 				continue;
-			}
-
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
+			buf.putInt(start + i * INDEX_SIZE, children[i]);
 		}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		return data;
 	}
 
 	/**
@@ -441,7 +408,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -599,6 +566,53 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	/**
+	 * @return the used entry slots of this page in order
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if (slots == null) {
+			slots = new int[numSlots - 1 - getNumEmptySlots()];
+			int n = 0;
+			for (int i = HeaderBitmap.nextSetBit(header, 1, numSlots); i >= 0;
+					i = HeaderBitmap.nextSetBit(header, i + 1, numSlots))
+				slots[n++] = i;
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Find the child to descend into to reach the left-most leaf that may
+	 * contain the key f: the left child of the first entry whose key is
+	 * greater than or equal to f, or the right child of the last entry if
+	 * there is none. Uses binary search over the used slots and creates no
+	 * entries.
+	 * 
+	 * @param f - the key to look for, or null for the left-most child
+	 * @return the id of the child page
+	 * @throws NoSuchElementException if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) throws NoSuchElementException {
+		int[] slots = usedSlots();
+		if (slots.length == 0 || !isSlotUsed(0))
+			throw new NoSuchElementException();
+		int lo = 0;
+		if (f != null) {
+			int hi = slots.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[slots[mid]].compare(Op.LESS_THAN, f))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+		}
+		int slot = lo == 0 ? 0 : slots[lo - 1];
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
 	}
 
 	/**
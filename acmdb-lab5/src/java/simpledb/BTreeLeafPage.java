@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -19,6 +20,9 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the used slots in order; built when first needed after a change
+	private volatile int[] usedSlots;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -26,8 +30,11 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			// the key field stands for the whole key when the index is
+			// keyed on several fields
+			Field key = (fieldid == keyField ? getKey(t) : t.getField(fieldid));
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -62,7 +69,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on several fields.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, leading field first
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -103,7 +122,12 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		// the bytes we were built from are the before-image; keeping a copy
+		// of them is cheaper than encoding the page again
+		synchronized(oldDataLock)
+		{
+			oldData = data.clone();
+		}
 	}
 
 	/** 
@@ -137,7 +161,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -149,7 +173,7 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
@@ -199,84 +223,29 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		// a new array is all zeroes, so empty slots and the padding at the
+		// end need no writes at all
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteBuffer buf = ByteBuffer.wrap(data);
 
 		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		buf.putInt(parent);
+		buf.putInt(leftSibling);
+		buf.putInt(rightSibling);
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
-		}
+		buf.put(header);
 
 		// create the tuples
+		int start = buf.position();
 		for (int i=0; i<tuples.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
+			if (!isSlotUsed(i))
 				continue;
-			}
-
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
+			buf.position(start + i * td.getSize());
+			tuples[i].serialize(buf);
 		}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		return data;
 	}
 
 	/**
@@ -311,28 +280,15 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("type mismatch, in addTuple");
 
 		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
+		int emptySlot = HeaderBitmap.nextClearBit(header, 0, numSlots);
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int[] slots = usedSlots();
+		int greater = search(slots, getKey(t), true);
+		int lessOrEqKey = greater == 0 ? -1 : slots[greater - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -445,11 +401,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - HeaderBitmap.cardinality(header, numSlots);
 	}
 
 	/**
@@ -473,6 +425,60 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	/**
+	 * @return the used slots of this page in order
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if (slots == null) {
+			slots = new int[numSlots - getNumEmptySlots()];
+			int n = 0;
+			for (int i = nextUsedSlot(0); i >= 0; i = nextUsedSlot(i + 1))
+				slots[n++] = i;
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Binary search over the keys of the tuples in the given slots.
+	 * 
+	 * @param slots - the used slots, in order
+	 * @param f - the key to look for
+	 * @param strict - whether to look for keys greater than f rather than
+	 *        greater than or equal to it
+	 * @return the index into slots of the first tuple whose key is greater
+	 *         than (or equal to) f, or slots.length if there is none
+	 */
+	private int search(int[] slots, Field f, boolean strict) {
+		int lo = 0;
+		int hi = slots.length;
+		Predicate.Op below = strict ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getKey(tuples[slots[mid]]).compare(below, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Find the first tuple on this page whose key is greater than or equal to
+	 * f, by binary search over the used slots.
+	 * 
+	 * @param f - the key to look for
+	 * @return the slot of that tuple, or -1 if every key on the page is less
+	 *         than f
+	 */
+	public int findFirstSlot(Field f) {
+		int[] slots = usedSlots();
+		int i = search(slots, f, false);
+		return i == slots.length ? -1 : slots[i];
 	}
 
 	/**
@@ -491,6 +497,35 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page starting at the given
+	 * slot, e.g. one returned by {@link #findFirstSlot}
+	 */
+	public Iterator<Tuple> iterator(int fromSlot) {
+		return new BTreeLeafPageIterator(this, fromSlot);
+	}
+
+	/**
+	 * @return the first used slot at or after from, or -1 if there is none
+	 */
+	int nextUsedSlot(int from) {
+		return HeaderBitmap.nextSetBit(header, from, numSlots);
+	}
+
+	/**
+	 * @return the last used slot at or before from, or -1 if there is none
+	 */
+	int prevUsedSlot(int from) {
+		return HeaderBitmap.prevSetBit(header, Math.min(from, numSlots - 1));
+	}
+
+	/**
+	 * @return the tuple in slot i, without checking whether the slot is used
+	 */
+	Tuple slotTuple(int i) {
+		return tuples[i];
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -519,6 +554,7 @@ public class BTreeLeafPage extends BTreePage {
 
 /**
  * Helper class that implements the Java Iterator for tuples on a BTreeLeafPage.
+ * It finds the used slots straight from the header bitmap.
  */
 class BTreeLeafPageIterator implements Iterator<Tuple> {
 	int curTuple = 0;
@@ -529,35 +565,29 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int fromSlot) {
+		this.p = p;
+		this.curTuple = fromSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (true) {
-				nextToReturn = p.getTuple(curTuple++);
-				if(nextToReturn != null)
-					return true;
-			}
-		} catch(NoSuchElementException e) {
+		int slot = p.nextUsedSlot(curTuple);
+		if (slot < 0)
 			return false;
-		}
+		curTuple = slot + 1;
+		nextToReturn = p.slotTuple(slot);
+		return true;
 	}
 
 	public Tuple next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
 		Tuple next = nextToReturn;
-
-		if (next == null) {
-			if (hasNext()) {
-				next = nextToReturn;
-				nextToReturn = null;
-				return next;
-			} else
-				throw new NoSuchElementException();
-		} else {
-			nextToReturn = null;
-			return next;
-		}
+		nextToReturn = null;
+		return next;
 	}
 
 	public void remove() {
@@ -567,6 +597,7 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 
 /**
  * Helper class that implements the Java Iterator for tuples on a BTreeLeafPage in reverse.
+ * It finds the used slots straight from the header bitmap.
  */
 class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 	int curTuple;
@@ -582,32 +613,20 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (curTuple >= 0) {
-				nextToReturn = p.getTuple(curTuple--);
-				if(nextToReturn != null)
-					return true;
-			}
-			return false;
-		} catch(NoSuchElementException e) {
+		int slot = p.prevUsedSlot(curTuple);
+		if (slot < 0)
 			return false;
-		}
+		curTuple = slot - 1;
+		nextToReturn = p.slotTuple(slot);
+		return true;
 	}
 
 	public Tuple next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
 		Tuple next = nextToReturn;
-
-		if (next == null) {
-			if (hasNext()) {
-				next = nextToReturn;
-				nextToReturn = null;
-				return next;
-			} else
-				throw new NoSuchElementException();
-		} else {
-			nextToReturn = null;
-			return next;
-		}
+		nextToReturn = null;
+		return next;
 	}
 
 	public void remove() {
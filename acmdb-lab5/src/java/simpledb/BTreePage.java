@@ -22,10 +22,11 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
-	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -52,11 +53,71 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreePage keyed on several fields, compared lexicographically
+	 * in the given order.
+	 * @see CompositeField
+	 * 
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, leading field first
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of a tuple: its key field, or a CompositeField of its
+	 * key fields if the index is keyed on several
+	 */
+	public Field getKey(Tuple t) {
+		if(keyFields.length == 1)
+			return t.getField(keyField);
+		return CompositeField.of(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes a key takes on disk
+	 */
+	protected int getKeySize() {
+		int size = 0;
+		for(int f : keyFields)
+			size += td.getFieldType(f).getLen();
+		return size;
+	}
+
+	/**
+	 * @return whether a field can be stored as a key of this page
+	 */
+	protected boolean isKey(Field f) {
+		if(keyFields.length == 1)
+			return f.getType().equals(td.getFieldType(keyField));
+		if(!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length)
+			return false;
+		for(int i = 0; i < keyFields.length; i++) {
+			if(!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read a key from the source stream.
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		if(keyFields.length == 1)
+			return td.getFieldType(keyField).parse(dis);
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < keyFields.length; i++)
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeField(fields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -4,6 +4,8 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -15,65 +17,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * locks to read/write the page.
  *
  * @Threadsafe, all fields are final
+ * @see LockManager
  */
-
-
-class PageLock {
-    public PageId _pageId;
-    private Set<TransactionId> _shared_locks;
-    private TransactionId _ex_lock;
-
-    PageLock(PageId pid) {
-        _pageId = pid;
-        _shared_locks = Collections.synchronizedSet(new HashSet<>());
-        _ex_lock = null;
-    }
-
-    boolean acquireLock(TransactionId tid, Permissions p) {
-        if (p.equals(Permissions.READ_ONLY)) {
-            if (_ex_lock == null) {
-                _shared_locks.add(tid);
-                return true;
-            } else {
-                return _ex_lock.equals(tid);
-            }
-        } else if (p.equals(Permissions.READ_WRITE)) {
-            if (_ex_lock != null) return _ex_lock.equals(tid);
-            if (_shared_locks.isEmpty() || (_shared_locks.size() == 1 && _shared_locks.contains(tid))) {
-                _ex_lock = tid;
-                _shared_locks.clear();
-
-                return true;
-            }
-            return false;
-        }
-        return false;
-    }
-
-    void releaseLock(TransactionId tid) {
-        if (tid.equals(_ex_lock)) _ex_lock = null;
-        else _shared_locks.remove(tid);
-    }
-
-
-    boolean holdsLock(TransactionId tid) {
-        return _ex_lock.equals(tid) || _shared_locks.contains(tid);
-    }
-
-    boolean hasEx() {
-        return _ex_lock != null;
-    }
-
-    Set<TransactionId> getHolders() {
-        Set<TransactionId> set = new HashSet<>();
-        if (hasEx()) set.add(_ex_lock);
-        set.addAll(_shared_locks);
-        return set;
-    }
-
-}
-
-
 public class BufferPool {
     /** Bytes per page, including header. */
     private static final int PAGE_SIZE = 4096;
@@ -85,6 +30,9 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Pages the background writer logs and writes with one force */
+    static final int WRITE_BACK_BATCH = 16;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -92,58 +40,55 @@ public class BufferPool {
      */
 
 
-    private ConcurrentHashMap<PageId, PageLock> pidToLock;
-    private ConcurrentHashMap<TransactionId, Set<PageId>> tidToPid;
-    private DependencyGraph dependencyGraph;
-
-    private class DependencyGraph {
-        private ConcurrentHashMap<TransactionId, Set<TransactionId>> graph = new ConcurrentHashMap<>();
-        synchronized void updateGraph(TransactionId tid, PageId pid) {
-            graph.putIfAbsent(tid, new HashSet<>());
-            Set<TransactionId> set = graph.get(tid);
-            set.clear();
-            if (pid == null) return;
-            synchronized (pidToLock.get(pid)) {
-                set.addAll(pidToLock.get(pid).getHolders());
-            }
-        }
-
-        synchronized void checkDeadlock(TransactionId tid) throws TransactionAbortedException {
-            dfs(tid, new HashSet<>());
-        }
-
-
-        void dfs(TransactionId root, HashSet<TransactionId> visit) throws TransactionAbortedException {
-            if (!graph.containsKey(root)) return;
-            for (TransactionId i : graph.get(root)) {
-                if (visit.contains(i)) {
-                    throw new TransactionAbortedException();
-                }
-                visit.add(i);
-                dfs(i, visit);
-                visit.remove(i);
-            }
-        }
-
-    }
-
-
-//    private final LockManager lockManager;
-
-    private LinkedHashMap<PageId, Page> _page_cache;
-    private LinkedHashMap<PageId, Integer> _LRU_cache;
-//    private ConcurrentHashMap<PageId, Page> _page_cache;
-//    private ConcurrentHashMap<PageId, Integer> _LRU_cache;
+    private final LockManager _lockManager;
+    private final PageTable _page_table;
+    private final Object _evictionLock = new Object();
     private int _capacity;
+    private final PageReplacementPolicy _policy;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _backgroundWrites = new AtomicLong();
+
+    // for every running transaction, the pages it asked for with write
+    // permission or put into the pool; only these can be dirtied by it
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> _writeSets = new ConcurrentHashMap<>();
+
+    // frames with a nonzero recLsn
+    private final AtomicInteger _dirtyPages = new AtomicInteger();
+    private volatile int _lowWatermark;
+    private volatile int _highWatermark;
+    private volatile int _writeRate;
+
+    // pages waiting for the background writer; also guards _writer and
+    // _cleaning
+    private final LinkedHashSet<PageId> _writeBack = new LinkedHashSet<>();
+    private Thread _writer;
+    // set when the pool goes over the high watermark, until the writer has
+    // brought it back down to the low one
+    private boolean _cleaning;
+    // set once the pool is thrown away; no writer is started any more
+    private boolean _stopped;
 
     public BufferPool(int numPages) {
-        _page_cache = new LinkedHashMap<>();
-        _LRU_cache = new LinkedHashMap<>();
+        this(numPages, new TwoQueueReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to pick pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy
+     */
+    public BufferPool(int numPages, PageReplacementPolicy policy) {
+        _page_table = new PageTable();
         _capacity = numPages;
-        tidToPid = new ConcurrentHashMap<>();
-        pidToLock = new ConcurrentHashMap<>();
-        dependencyGraph = new DependencyGraph();
-//        lockManager = new LockManager();
+        _policy = policy;
+        _lockManager = new LockManager();
+        _highWatermark = numPages * 3 / 4;
+        _lowWatermark = numPages / 2;
         // some code goes here
     }
 
@@ -161,6 +106,73 @@ public class BufferPool {
     	BufferPool.pageSize = PAGE_SIZE;
     }
 
+    /** Return the replacement policy used by this buffer pool */
+    public PageReplacementPolicy getReplacementPolicy() {
+        return _policy;
+    }
+
+    /** Return the number of getPage calls served from the pool */
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    /** Return the number of getPage calls that had to read from disk */
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    /** Return the number of pages evicted to make room for others */
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+
+    /** Return the number of pages written out by the background writer */
+    public long getBackgroundWriteCount() {
+        return _backgroundWrites.get();
+    }
+
+    /** Reset the hit, miss, eviction and background write counters */
+    public void resetStatistics() {
+        _hits.set(0);
+        _misses.set(0);
+        _evictions.set(0);
+        _backgroundWrites.set(0);
+    }
+
+    /** Return the number of dirty pages in the pool */
+    public int getDirtyPageCount() {
+        return _dirtyPages.get();
+    }
+
+    /**
+     * Set when the background writer cleans pages on its own: it starts once
+     * more than high pages of the pool are dirty, and writes out the oldest
+     * dirty pages until no more than low are left. The defaults are three
+     * quarters and half of the pool.
+     */
+    public void setDirtyWatermarks(int low, int high) {
+        if (low < 0 || high < low)
+            throw new IllegalArgumentException("bad dirty page watermarks " + low + ", " + high);
+        _lowWatermark = low;
+        _highWatermark = high;
+    }
+
+    /**
+     * Limit the background writer to about the given number of page writes
+     * per second, so that it does not take the disk away from queries. 0,
+     * the default, means no limit.
+     */
+    public void setWriteRate(int pagesPerSecond) {
+        if (pagesPerSecond < 0)
+            throw new IllegalArgumentException("bad write rate " + pagesPerSecond);
+        _writeRate = pagesPerSecond;
+    }
+
+    /** Return the lock manager used by this buffer pool */
+    public LockManager getLockManager() {
+        return _lockManager;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -176,69 +188,56 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-
-
-
-
-    public Page findPage(PageId pid) {
-        for (int i = 0; i < _page_cache.size(); ++i) {
-
-            if (_page_cache.get(i).getId().equals(pid)) {
-
-                return _page_cache.get(i);
-
-            }
-        }
-        return null;
-    }
-
-    public void LRU_update(PageId pid) {
-        for (PageId key : _LRU_cache.keySet()) {
-            int time = _LRU_cache.get(key);
-            if (time > 0) _LRU_cache.put(key, time - 1);
-        }
-        _LRU_cache.put(pid, _capacity);
-
-    }
-
-    private void acquireLock(PageId pid, TransactionId tid, Permissions p) throws TransactionAbortedException {
-        pidToLock.putIfAbsent(pid, new PageLock(pid));
-        boolean ifGetLock;
-        synchronized (pidToLock.get(pid)) {
-            ifGetLock = pidToLock.get(pid).acquireLock(tid, p);
-        }
-        while (!ifGetLock) {
-            dependencyGraph.updateGraph(tid, pid);
-            dependencyGraph.checkDeadlock(tid);
-            synchronized (pidToLock.get(pid)) {
-                ifGetLock = pidToLock.get(pid).acquireLock(tid, p);
-            }
-        }
-        dependencyGraph.updateGraph(tid, null);
-        tidToPid.putIfAbsent(tid, new HashSet<>());
-        tidToPid.get(tid).add(pid);
-
-    }
-
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
 
 //        if (pid == null) throw
 
-        acquireLock(pid, tid, perm);
-//        lockManager.acquireLock(tid, pid, perm);
+        _lockManager.acquireLock(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE) writeSet(tid).add(pid);
 
-        if (_page_cache.containsKey(pid)) return _page_cache.get(pid);
-        if (_page_cache.size() >= _capacity) {
-            evictPage();
-//            throw new DbException("full");
+        // fast path: a resident page only needs a lookup in its stripe
+        Page cached = _page_table.getPage(pid);
+        if (cached != null) {
+            _hits.incrementAndGet();
+            _policy.pageAccessed(pid);
+            return cached;
         }
-        Page _page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        _page_cache.put(pid, _page);
-        _page.setBeforeImage();
-//        LRU_update(pid);
 
-        return _page;
+        while (true) {
+            PageTable.Frame frame = _page_table.getOrCreate(pid);
+            frame.latch.lock();
+            try {
+                if (frame.removed) continue;
+                if (frame.page != null) {
+                    // another thread loaded it while we waited for the latch
+                    _hits.incrementAndGet();
+                    _policy.pageAccessed(pid);
+                    return frame.page;
+                }
+                _misses.incrementAndGet();
+                try {
+                    reserveFrame();
+                } catch (DbException e) {
+                    _page_table.remove(frame, false);
+                    throw e;
+                }
+                Page _page;
+                try {
+                    _page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                } catch (RuntimeException e) {
+                    _page_table.remove(frame, true);
+                    throw e;
+                }
+                // the page was built from what is on disk, which is already
+                // its before image; a copy is only taken once it is logged
+                frame.page = _page;
+                _policy.pageLoaded(pid);
+                return _page;
+            } finally {
+                frame.latch.unlock();
+            }
+        }
 
     }
 
@@ -252,10 +251,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        synchronized (pidToLock.get(pid)){
-            pidToLock.get(pid).releaseLock(tid);
-        }
-        tidToPid.get(tid).remove(pid);
+        _lockManager.releaseLock(tid, pid);
         // some code goes here
         // not necessary for lab1|lab2
     }
@@ -275,9 +271,7 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        synchronized (pidToLock.get(p)) {
-            return pidToLock.get(p).holdsLock(tid);
-        }
+        return _lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -289,30 +283,63 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        Set<PageId> LockPages = tidToPid.get(tid);
-        tidToPid.remove(tid);
-        if (LockPages == null) return;
-        for (PageId pid: LockPages){
-            Page page = _page_cache.get(pid);
-            if (page != null && pidToLock.get(pid).hasEx()){
-                if (commit) {
-                    if (page.isDirty() != null) {
-                        flushPage(pid);
-                        page.setBeforeImage();
-                    }
-                }
-                else {
-                    _page_cache.put(pid, page.getBeforeImage());
-                }
-            }
-            synchronized (pidToLock.get(pid)){
-                pidToLock.get(pid).releaseLock(tid);
-            }
+        LogFile log = Database.getLogFile();
+        if (commit) {
+            flushPages(tid);
+            // callers that bypass Transaction still need a COMMIT record
+            // once the transaction has logged an update
+            if (log.isActive(tid)) log.logCommit(tid);
+        } else if (log.isActive(tid)) {
+            // some pages were written out before the abort; the log drops
+            // the transaction's pages from the pool and puts the before
+            // images of those back on disk
+            log.logAbort(tid);
+        } else {
+            discardWriteSet(tid);
         }
+        _writeSets.remove(tid);
+        _lockManager.releaseAllLocks(tid);
         // some code goes here
         // not necessary for lab1|lab2
     }
 
+    /** @return the write set of a transaction, creating it if needed */
+    private Set<PageId> writeSet(TransactionId tid) {
+        Set<PageId> pids = _writeSets.get(tid);
+        if (pids == null) {
+            Set<PageId> created = ConcurrentHashMap.newKeySet();
+            pids = _writeSets.putIfAbsent(tid, created);
+            if (pids == null) pids = created;
+        }
+        return pids;
+    }
+
+    /**
+     * Drop every page in the write set of an aborting transaction from the
+     * pool, so that its next reader gets it from disk. Pages can be changed
+     * in place before they are marked dirty, e.g. by a B+ tree split cut
+     * short by a deadlock, so clean pages of the write set go too; pages
+     * the transaction only read stay. What is on disk is the right image
+     * once the rollback has undone the pages that were written out: other
+     * transactions' changes were forced when they committed. Afterwards no
+     * other thread can log, and then write, a change of the transaction any
+     * more; rollback relies on this.
+     */
+    void discardWriteSet(TransactionId tid) {
+        Set<PageId> pids = _writeSets.get(tid);
+        if (pids == null) return;
+        for (PageId pid : pids) {
+            discardPage(pid);
+            // the aborted change may have filled the page; the map is only
+            // a hint, so let the next inserter look at what is on disk
+            if (pid instanceof HeapPageId) {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if (file instanceof HeapFile)
+                    ((HeapFile) file).getFreeSpaceMap().setFree(pid.pageNumber(), true);
+            }
+        }
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
@@ -322,7 +349,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The table's secondary
+     * indexes get an entry for the tuple in the same way.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -335,10 +363,11 @@ public class BufferPool {
         ArrayList<Page> pages = tablefile.insertTuple(tid, t);
         for (Page i : pages) {
             PageId pid = i.getId();
-            if (!_page_cache.containsKey(pid) && _page_cache.size() >= _capacity) evictPage();
-            i.markDirty(true, tid);
-            _page_cache.put(pid, i);
-//            LRU_update(pid);
+            cachePage(i, tid);
+        }
+        // the tuple has its RecordId now, which the index entries point at
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            for (Page i : index.insertEntry(tid, t)) cachePage(i, tid);
         }
 
         // some code goes here
@@ -353,7 +382,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The tuple's entries are
+     * removed from the table's secondary indexes first.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -363,13 +393,13 @@ public class BufferPool {
 
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile tableFile = Database.getCatalog().getDatabaseFile(tableId);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            for (Page i : index.deleteEntry(tid, t)) cachePage(i, tid);
+        }
         ArrayList<Page> affected_page = tableFile.deleteTuple(tid, t);
         for (Page i: affected_page){
             PageId pid = i.getId();
-            if (!_page_cache.containsKey(pid) && _page_cache.size() >= _capacity) evictPage();
-            i.markDirty(true, tid);
-            _page_cache.put(pid, i);
-//            LRU_update(pid);
+            cachePage(i, tid);
         }
         // some code goes here
         // not necessary for lab1
@@ -380,10 +410,8 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        for (PageId i : _page_cache.keySet()) {
-            flushPage(i);
-        }
+    public void flushAllPages() throws IOException {
+        flushFrames(_page_table.frames(), null, true);
         // some code goes here
         // not necessary for lab1
 
@@ -397,15 +425,19 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-//        if (!_page_cache.containsValue(pid)) return;
-//        try {
-//            flushPage(pid);
-//        } catch (IOException e){
-//            e.printStackTrace();
-//        }
-        _page_cache.remove(pid);
-//        LRU_update(pid);
+    public void discardPage(PageId pid) {
+        PageTable.Frame frame = _page_table.get(pid);
+        if (frame == null) return;
+        frame.latch.lock();
+        try {
+            if (frame.removed) return;
+            boolean resident = frame.page != null;
+            setClean(frame);
+            _page_table.remove(frame, resident);
+            if (resident) _policy.pageDiscarded(pid);
+        } finally {
+            frame.latch.unlock();
+        }
         // some code goes here
         // not necessary for lab1
     }
@@ -414,56 +446,460 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        Page page = _page_cache.get(pid);
-        if (page == null) throw new IOException();
-        if (page.isDirty() == null) return;
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-        page.markDirty(false, null);
+    private void flushPage(PageId pid) throws IOException {
+        PageTable.Frame frame = _page_table.get(pid);
+        if (frame == null) throw new IOException();
+        frame.latch.lock();
+        try {
+            flushFrame(frame);
+        } finally {
+            frame.latch.unlock();
+        }
+    }
+
+    /**
+     * Write the page held by a frame if it is dirty, logging it first. The
+     * caller must hold the frame's latch.
+     */
+    private void flushFrame(PageTable.Frame frame) throws IOException {
+        Page image = logFrame(frame, null);
+        if (image != null) {
+            writeLatched(Database.getCatalog().getDatabaseFile(frame.pid.getTableId()),
+                    Collections.singletonList(frame), Collections.singletonList(image));
+        }
 
         // some code goes here
         // not necessary for lab1
     }
 
+    /**
+     * Write an UPDATE record for the page held by a frame if it is dirty
+     * (and, if tid is not null, was dirtied by tid), and remember the record
+     * as the frame's LSN. The record goes from the image the previous record
+     * of the page ended with to a copy of the page taken now, which becomes
+     * the frame's image; so the records of a page form a chain, which
+     * rollback and recovery rely on. The copy, not the page, is what gets
+     * written, so that a change made to the page after it was logged can
+     * not reach the disk ahead of its own record. The caller must hold the
+     * frame's latch.
+     *
+     * @return the image that was logged, or null if no record was written
+     */
+    private Page logFrame(PageTable.Frame frame, TransactionId tid) throws IOException {
+        Page page = frame.page;
+        if (page == null) return null;
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null || (tid != null && !tid.equals(dirtier))) return null;
+        Page before = frame.image != null ? frame.image : page.getBeforeImage();
+        // the page keeps the image as its own before image too, in case it
+        // is cached again in a new frame after an eviction
+        page.setBeforeImage();
+        Page image = page.getBeforeImage();
+        frame.lsn = Database.getLogFile().logWrite(dirtier, before, image);
+        frame.image = image;
+        frame.imageVersion = frame.version;
+        return image;
+    }
+
+    /**
+     * Write the images logged for some frames of one file with one call to
+     * {@link DbFile#writePages}, once the log is on disk up to the last of
+     * their records. A frame whose page has not been marked dirty again
+     * since it was logged becomes clean. The caller must hold the latches of
+     * all the frames, and pass them sorted by page number.
+     */
+    private void writeLatched(DbFile file, List<PageTable.Frame> frames, List<Page> images)
+            throws IOException {
+        if (frames.isEmpty()) return;
+        long lsn = 0;
+        for (PageTable.Frame frame : frames) lsn = Math.max(lsn, frame.lsn);
+        Database.getLogFile().force(lsn);
+        file.writePages(images);
+        for (PageTable.Frame frame : frames) {
+            if (frame.version != frame.imageVersion) continue;
+            Page page = frame.page;
+            if (page != null) page.markDirty(false, null);
+            setClean(frame);
+        }
+    }
+
+    /**
+     * Write the images logged for the given frames, in page number order
+     * within each file, so that pages next to each other on disk go out in
+     * one write. Runs of frames are latched together; since waiting for a
+     * latch while holding others could deadlock with evictPage, a frame
+     * whose latch is busy ends the run and is waited for on its own.
+     *
+     * @return the frames that were logged again by another thread before
+     *         they could be written, and so were left alone
+     */
+    private List<PageTable.Frame> writeFrames(final List<PageTable.Frame> frames, List<Page> images)
+            throws IOException {
+        Integer[] order = new Integer[frames.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            PageId x = frames.get(a).pid;
+            PageId y = frames.get(b).pid;
+            if (x.getTableId() != y.getTableId()) return Integer.compare(x.getTableId(), y.getTableId());
+            return Integer.compare(x.pageNumber(), y.pageNumber());
+        });
+
+        List<PageTable.Frame> skipped = new ArrayList<>();
+        List<PageTable.Frame> held = new ArrayList<>();
+        List<Page> run = new ArrayList<>();
+        int i = 0;
+        while (i < order.length) {
+            int tableId = frames.get(order[i]).pid.getTableId();
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            try {
+                for (; i < order.length && frames.get(order[i]).pid.getTableId() == tableId; i++) {
+                    PageTable.Frame frame = frames.get(order[i]);
+                    Page image = images.get(order[i]);
+                    if (!held.isEmpty() && !frame.latch.tryLock()) {
+                        writeLatched(file, held, run);
+                        unlockAll(held);
+                        run.clear();
+                    }
+                    if (held.isEmpty()) frame.latch.lock();
+                    if (frame.removed || frame.image != image) {
+                        frame.latch.unlock();
+                        if (!frame.removed) skipped.add(frame);
+                        continue;
+                    }
+                    held.add(frame);
+                    run.add(image);
+                }
+                writeLatched(file, held, run);
+            } finally {
+                unlockAll(held);
+                run.clear();
+            }
+        }
+        return skipped;
+    }
+
+    /** Release the latches of the given frames and forget them */
+    private static void unlockAll(List<PageTable.Frame> frames) {
+        for (PageTable.Frame frame : frames) frame.latch.unlock();
+        frames.clear();
+    }
+
+    /**
+     * Flush the dirty pages held by the given frames (only those dirtied by
+     * tid, if tid is not null). Every page is logged before any is written,
+     * so the whole batch costs a single force of the log. If wait is true,
+     * pages that another thread logged again in the meantime are flushed
+     * one at a time before returning, so that all of them are on disk;
+     * otherwise they are left to that thread.
+     *
+     * @return the number of pages written
+     */
+    private int flushFrames(Collection<PageTable.Frame> frames, TransactionId tid, boolean wait)
+            throws IOException {
+        List<PageTable.Frame> logged = new ArrayList<>();
+        List<Page> images = new ArrayList<>();
+        for (PageTable.Frame frame : frames) {
+            frame.latch.lock();
+            try {
+                Page image = logFrame(frame, tid);
+                if (image != null) {
+                    logged.add(frame);
+                    images.add(image);
+                }
+            } finally {
+                frame.latch.unlock();
+            }
+        }
+        List<PageTable.Frame> skipped = writeFrames(logged, images);
+        if (wait) {
+            for (PageTable.Frame frame : skipped) {
+                frame.latch.lock();
+                try {
+                    if (!frame.removed && (tid == null || frame.page == null
+                            || tid.equals(frame.page.isDirty())))
+                        flushFrame(frame);
+                } finally {
+                    frame.latch.unlock();
+                }
+            }
+        }
+        return logged.size() - skipped.size();
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
+        Set<PageId> pids = _writeSets.get(tid);
+        if (pids == null) return;
+        List<PageTable.Frame> frames = new ArrayList<>();
+        for (PageId pid : pids) {
+            PageTable.Frame frame = _page_table.get(pid);
+            if (frame != null) frames.add(frame);
+        }
+        flushFrames(frames, tid, true);
         // some code goes here
         // not necessary for lab1|lab2
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Return the dirty page table: every dirty page in the pool with its
+     * recLSN, the LSN the log had reached when the page was first dirtied
+     * since it was last written. None of the page's unwritten changes can
+     * have been logged before its recLSN.
+     */
+    Map<PageId, Long> dirtyPages() {
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (PageTable.Frame frame : _page_table.frames()) {
+            long recLsn = frame.recLsn;
+            if (recLsn != 0) dirty.put(frame.pid, recLsn);
+        }
+        return dirty;
+    }
+
+    /**
+     * Have the given pages written out by a background thread if they are
+     * still dirty by then. The writer takes them a batch at a time and only
+     * ever holds the latches of the batch it is working on. Used after a
+     * checkpoint, so that the next checkpoint needs less of the log.
+     */
+    void writeBackInBackground(Collection<PageId> pids) {
+        synchronized (_writeBack) {
+            _writeBack.addAll(pids);
+            if (!_writeBack.isEmpty()) startWriter();
+        }
+    }
+
+    /**
+     * Note that the page of a frame has been dirtied, and have the
+     * background writer clean pages if the pool is now over the high
+     * watermark. The caller must hold the frame's latch.
+     */
+    private void setDirty(PageTable.Frame frame) {
+        frame.version++;
+        if (frame.recLsn != 0) return;
+        frame.recLsn = Database.getLogFile().logEnd();
+        if (_dirtyPages.incrementAndGet() > _highWatermark) {
+            synchronized (_writeBack) {
+                _cleaning = true;
+                startWriter();
+            }
+        }
+    }
+
+    /** Note that the page of a frame is clean; the caller must hold the frame's latch */
+    private void setClean(PageTable.Frame frame) {
+        if (frame.recLsn == 0) return;
+        frame.recLsn = 0;
+        _dirtyPages.decrementAndGet();
+    }
+
+    /** Start the background writer if it is not running; the caller must hold _writeBack */
+    private void startWriter() {
+        if (_writer == null && !_stopped) {
+            _writer = new Thread(this::runWriter, "page-writer");
+            _writer.setDaemon(true);
+            _writer.start();
+        }
+    }
+
+    /**
+     * Body of the background writer. Pages queued by a checkpoint come
+     * first; while cleaning, the writer takes the pages that have been dirty
+     * the longest, those with the smallest recLSN, and skips pages that are
+     * latched. Each batch is written in page order, adjacent pages together,
+     * and the writer then sleeps long enough to keep to the write rate. It
+     * exits once there is nothing to write.
      */
-    private synchronized  void evictPage() throws DbException {
-//        int times = _capacity;
-//        PageId evict_pageId = null;
-//        for (PageId pageId : _LRU_cache.keySet()) {
-//            if (_LRU_cache.get(pageId) <= times) {
-//                times = _LRU_cache.get(pageId);
-//                evict_pageId = pageId;
-//            }
-//        }
-//        try {
-//            flushPage(evict_pageId);
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//        _page_cache.remove(evict_pageId);
-//        _LRU_cache.remove(evict_pageId);
-
-        for (Map.Entry<PageId, Page> i : _page_cache.entrySet()) {
-            PageId pid = i.getKey();
-            Page page = i.getValue();
-            if (page.isDirty() == null) {
-                discardPage(pid);
+    private void runWriter() {
+        while (true) {
+            List<PageTable.Frame> batch = new ArrayList<>();
+            boolean cleaning;
+            synchronized (_writeBack) {
+                Iterator<PageId> it = _writeBack.iterator();
+                while (it.hasNext() && batch.size() < WRITE_BACK_BATCH) {
+                    PageTable.Frame frame = _page_table.get(it.next());
+                    it.remove();
+                    if (frame != null) batch.add(frame);
+                }
+                cleaning = batch.isEmpty() && _cleaning;
+                if (_stopped || (batch.isEmpty() && !cleaning)) {
+                    _writer = null;
+                    return;
+                }
+            }
+            if (cleaning) {
+                int excess = _dirtyPages.get() - _lowWatermark;
+                if (excess > 0) batch = oldestDirtyFrames(Math.min(WRITE_BACK_BATCH, excess));
+            }
+            int written = 0;
+            try {
+                written = flushFrames(batch, null, false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                // a page that is being changed while it is copied may not
+                // serialize; it is tried again later
+            }
+            _backgroundWrites.addAndGet(written);
+            if (cleaning && written == 0) {
+                // down to the low watermark, or every dirty page is busy
+                synchronized (_writeBack) {
+                    _cleaning = false;
+                }
+            }
+            int rate = _writeRate;
+            if (rate > 0 && written > 0) {
+                try {
+                    Thread.sleep(written * 1000L / rate);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the background writer for good and wait until it has finished
+     * the batch it is working on. Used when the pool is thrown away, which
+     * for the tests stands for a crash; a writer that went on would write
+     * pages behind the back of recovery.
+     */
+    void stopWriter() {
+        Thread writer;
+        synchronized (_writeBack) {
+            _stopped = true;
+            _writeBack.clear();
+            writer = _writer;
+        }
+        if (writer == null) return;
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** @return up to n unlatched dirty frames, oldest recLSN first */
+    private List<PageTable.Frame> oldestDirtyFrames(int n) {
+        final Map<PageTable.Frame, Long> recLsns = new HashMap<>();
+        for (PageTable.Frame frame : _page_table.frames()) {
+            long recLsn = frame.recLsn;
+            if (recLsn != 0 && !frame.latch.isLocked()) recLsns.put(frame, recLsn);
+        }
+        List<PageTable.Frame> oldest = new ArrayList<>(recLsns.keySet());
+        oldest.sort(Comparator.comparing(recLsns::get));
+        return oldest.subList(0, Math.min(n, oldest.size()));
+    }
+
+    /**
+     * Discards a page from the buffer pool, as chosen by the replacement
+     * policy. Clean pages are preferred; if every page is dirty, one is
+     * stolen: its UPDATE record is forced to the log and the page is written
+     * out before it leaves the pool, so that a rollback can still restore it
+     * (STEAL with write-ahead logging). Frames whose latch is held by another
+     * thread are skipped rather than waited for. The caller must hold the
+     * eviction lock.
+     */
+    private void evictPage() throws DbException {
+        while (true) {
+            boolean[] sawBusy = new boolean[1];
+            PageId victim = _policy.chooseVictim(pid -> isEvictable(pid, false, sawBusy));
+            if (victim == null)
+                victim = _policy.chooseVictim(pid -> isEvictable(pid, true, sawBusy));
+            if (victim == null) {
+                if (sawBusy[0]) {
+                    Thread.yield();
+                    continue;
+                }
+                throw new DbException("no page in the buffer pool can be evicted");
+            }
+
+            PageTable.Frame frame = _page_table.get(victim);
+            if (frame == null) {
+                // discarded concurrently; forget it and look again
+                _policy.pageDiscarded(victim);
+                continue;
+            }
+            if (!frame.latch.tryLock()) continue;
+            try {
+                if (frame.removed || frame.page == null) continue;
+                try {
+                    flushFrame(frame);
+                } catch (IOException e) {
+                    throw new DbException("could not write out page " + victim + ": " + e.getMessage());
+                }
+                setClean(frame);
+                _page_table.remove(frame, true);
+                _policy.pageEvicted(victim);
+                _evictions.incrementAndGet();
                 return;
+            } finally {
+                frame.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Victim filter for {@link #evictPage}: a page can go if its frame is not
+     * latched and it is clean, or dirty and steal is true.
+     */
+    private boolean isEvictable(PageId pid, boolean steal, boolean[] sawBusy) {
+        PageTable.Frame f = _page_table.get(pid);
+        if (f == null) return true;
+        if (f.latch.isLocked()) {
+            sawBusy[0] = true;
+            return false;
+        }
+        Page page = f.page;
+        return page == null || steal || page.isDirty() == null;
+    }
+
+    /**
+     * Count one more page against the capacity of the pool, evicting pages
+     * until there is room for it.
+     */
+    private void reserveFrame() throws DbException {
+        synchronized (_evictionLock) {
+            while (_page_table.size() >= _capacity) evictPage();
+            _page_table.reserve();
+        }
+    }
+
+    /**
+     * Put a page dirtied by tid into the pool, evicting another page first
+     * if it is not resident yet and the pool is full.
+     */
+    private void cachePage(Page page, TransactionId tid) throws DbException {
+        PageId pid = page.getId();
+        while (true) {
+            PageTable.Frame frame = _page_table.getOrCreate(pid);
+            frame.latch.lock();
+            try {
+                if (frame.removed) continue;
+                boolean resident = frame.page != null;
+                if (!resident) {
+                    try {
+                        reserveFrame();
+                    } catch (DbException e) {
+                        _page_table.remove(frame, false);
+                        throw e;
+                    }
+                }
+                page.markDirty(true, tid);
+                setDirty(frame);
+                writeSet(tid).add(pid);
+                frame.page = page;
+                if (resident) _policy.pageAccessed(pid);
+                else _policy.pageLoaded(pid);
+                return;
+            } finally {
+                frame.latch.unlock();
             }
         }
-        throw new DbException("shit");
-        // some code goes here
-        // not necessary for lab1
     }
 
 }
@@ -8,6 +8,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -40,10 +41,14 @@ public class Catalog {
 
     private HashMap<Integer, Table> _id_table_map;
     private HashMap<String, Integer> _name_id_map;
+    // table id -> secondary indexes on the table; read on every insert and
+    // delete, so it does not share the table maps' lack of synchronization
+    private ConcurrentHashMap<Integer, List<SecondaryIndex>> _index_map;
 
     public Catalog() {
         _id_table_map = new HashMap<>();
         _name_id_map = new HashMap<>();
+        _index_map = new ConcurrentHashMap<>();
         // some code goes here
     }
 
@@ -59,6 +64,7 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         if (_name_id_map.containsKey(name)) {
             _id_table_map.remove(_name_id_map.get(name));
+            _index_map.remove(_name_id_map.get(name));
             _name_id_map.replace(name, file.getId());
         }
         else _name_id_map.put(name, file.getId());
@@ -71,6 +77,38 @@ public class Catalog {
         addTable(file, name, "");
     }
 
+    /**
+     * Add a secondary index to the catalog. The index file is added as a
+     * table of its own, and from now on the BufferPool maintains the index
+     * as tuples are inserted into and deleted from the indexed table.
+     * @param index the index to add
+     * @param name the name of the index file's table
+     */
+    public void addIndex(SecondaryIndex index, String name) {
+        addTable(index.getFile(), name);
+        _index_map.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table; empty if there
+     * are none.
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = _index_map.get(tableid);
+        return indexes == null ? Collections.<SecondaryIndex>emptyList() : indexes;
+    }
+
+    /**
+     * Returns a secondary index on a field of the specified table, or null
+     * if the field has none.
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field) return index;
+        }
+        return null;
+    }
+
     public Table getTablefromId(int tableid) {
         return _id_table_map.get(tableid);
     }
@@ -147,6 +185,7 @@ public class Catalog {
     public void clear() {
         _id_table_map.clear();
         _name_id_map.clear();
+        _index_map.clear();
         // some code goes here
     }
     
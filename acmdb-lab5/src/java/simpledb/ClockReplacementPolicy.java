@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CLOCK (second chance) page replacement.
+ * <p>
+ * Every resident page owns a slot on a circular array together with a
+ * reference bit. A hit only sets the bit, so the hot path is a hash lookup
+ * and a store, and it takes no lock: the slots are found in a concurrent map
+ * and the bits are kept in an atomic array. To find a victim the clock hand
+ * sweeps the array, clearing reference bits as it goes, and stops at the
+ * first unreferenced page that the caller allows to be evicted. As long as
+ * the caller accepts the first unreferenced page, each hit costs at most
+ * one step of the hand, so victim selection is O(1) amortized. Pages the
+ * filter rejects, such as dirty or latched frames, are passed over without
+ * that bound: a search may go round the whole clock twice before it gives
+ * up, and the next search passes over the same pages again.
+ *
+ * @see PageReplacementPolicy
+ */
+public class ClockReplacementPolicy implements PageReplacementPolicy {
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private PageId[] _slots;
+    // replaced when the clock grows; hits re-check it after setting a bit
+    private volatile AtomicIntegerArray _referenced;
+    private final ConcurrentHashMap<PageId, Integer> _slotOf;
+    private int[] _freeSlots;
+    private int _numFree;
+    private int _hand;
+
+    /**
+     * @param capacity the number of frames in the buffer pool
+     */
+    public ClockReplacementPolicy(int capacity) {
+        int n = Math.max(1, capacity);
+        _slots = new PageId[n];
+        _referenced = new AtomicIntegerArray(n);
+        _slotOf = new ConcurrentHashMap<>();
+        _freeSlots = new int[n];
+        for (int i = 0; i < n; i++) _freeSlots[i] = n - 1 - i;
+        _numFree = n;
+        _hand = 0;
+    }
+
+    public void pageLoaded(PageId pid) {
+        _lock.lock();
+        try {
+            Integer slot = _slotOf.get(pid);
+            if (slot != null) {
+                _referenced.set(slot, 1);
+                return;
+            }
+            if (_numFree == 0) grow();
+            int free = _freeSlots[--_numFree];
+            _slots[free] = pid;
+            _referenced.set(free, 1);
+            _slotOf.put(pid, free);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = _slotOf.get(pid);
+        if (slot == null) return;
+        // the slot may have been handed to another page meanwhile, which
+        // then just gets one more chance than it deserves
+        AtomicIntegerArray referenced;
+        do {
+            referenced = _referenced;
+            referenced.set(slot, 1);
+        } while (referenced != _referenced);
+    }
+
+    public void pageEvicted(PageId pid) {
+        _lock.lock();
+        try {
+            remove(pid);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void pageDiscarded(PageId pid) {
+        _lock.lock();
+        try {
+            remove(pid);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        _lock.lock();
+        try {
+            // two full turns: the first may only clear reference bits
+            for (int step = 0; step < 2 * _slots.length; step++) {
+                int slot = _hand;
+                _hand = (_hand + 1) % _slots.length;
+                PageId pid = _slots[slot];
+                if (pid == null) continue;
+                if (_referenced.getAndSet(slot, 0) != 0) continue;
+                if (filter.canEvict(pid)) return pid;
+            }
+            return null;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int size() {
+        _lock.lock();
+        try {
+            return _slotOf.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void remove(PageId pid) {
+        Integer slot = _slotOf.remove(pid);
+        if (slot == null) return;
+        _slots[slot] = null;
+        _referenced.set(slot, 0);
+        _freeSlots[_numFree++] = slot;
+    }
+
+    // the pool may briefly hold more pages than its nominal capacity
+    private void grow() {
+        int old = _slots.length;
+        int n = old * 2;
+        _slots = Arrays.copyOf(_slots, n);
+        // publish the new array before copying, so that a hit that still
+        // set a bit in the old one is either copied or sets it again
+        AtomicIntegerArray from = _referenced;
+        AtomicIntegerArray to = new AtomicIntegerArray(n);
+        _referenced = to;
+        for (int i = 0; i < old; i++) {
+            if (from.get(i) != 0) to.set(i, 1);
+        }
+        _freeSlots = Arrays.copyOf(_freeSlots, n);
+        for (int i = n - 1; i >= old; i--) _freeSlots[_numFree++] = i;
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the value of a composite key: the values of
+ * several fields, compared lexicographically.
+ * <p>
+ * A CompositeField with fewer fields than the key it is compared with is a
+ * prefix of that key: only the leading fields are compared, so every key
+ * that starts with the prefix compares equal to it. A plain Field compared
+ * with a CompositeField is a prefix of one field.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of the key fields, leading field first.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite key needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the composite key of a tuple over the given fields
+     */
+    public static CompositeField of(Tuple t, int[] keyFields) {
+        Field[] fields = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            fields[i] = t.getField(keyFields[i]);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * @return the number of fields in this key
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the value of the i-th field of this key
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    public String toString() {
+        return Arrays.toString(fields);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField
+                && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    public void serialize(ByteBuffer buf) {
+        for (Field f : fields)
+            f.serialize(buf);
+    }
+
+    /**
+     * Compare the leading fields this key has in common with val, in order.
+     *
+     * @return a negative number, zero or a positive number as this key is
+     *         less than, has the same leading fields as, or is greater than
+     *         val
+     */
+    private int compareTo(Field val) {
+        Field[] other = (val instanceof CompositeField) ? ((CompositeField) val).fields : new Field[] { val };
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare the specified key, or key prefix, to this key.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int cmp = compareTo(val);
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of the leading field; the other fields of a composite
+     * key have types of their own.
+     * @return the type of the leading field
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
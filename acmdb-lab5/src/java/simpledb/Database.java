@@ -20,6 +20,7 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private volatile DeadlockPolicy _deadlockPolicy = DeadlockPolicy.DETECTION;
 
     private Database() {
         _catalog = new Catalog();
@@ -50,16 +51,45 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the deadlock policy of the static Database instance */
+    public static DeadlockPolicy getDeadlockPolicy() {
+        return _instance.get()._deadlockPolicy;
+    }
+
+    /**
+     * Set how the lock manager of the static Database instance handles
+     * deadlocks. The policy is kept when the buffer pool is reset.
+     */
+    public static void setDeadlockPolicy(DeadlockPolicy policy) {
+        Database db = _instance.get();
+        db._deadlockPolicy = policy;
+        db._bufferpool.getLockManager().setDeadlockPolicy(policy);
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that uses the given page replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, PageReplacementPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
+        _instance.get()._bufferpool.stopWriter();
+        bufferPool.getLockManager().setDeadlockPolicy(getDeadlockPolicy());
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +105,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._bufferpool.stopWriter();
         _instance.set(new Database());
     }
 
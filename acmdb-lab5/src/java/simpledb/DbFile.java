@@ -28,6 +28,20 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk. Pages that are next to each
+     * other in the file are written with a single write.
+     *
+     * @param pages The pages to write, sorted by page number
+     * @throws IOException if a write fails
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages();
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,36 @@
+package simpledb;
+
+/**
+ * How the {@link LockManager} deals with transactions that may wait for each
+ * other forever. The policy can be changed per Database instance with
+ * {@link Database#setDeadlockPolicy}.
+ * <p>
+ * The timestamp based policies use {@link TransactionId#getId()} as the age
+ * of a transaction: a smaller id means an older transaction.
+ */
+public enum DeadlockPolicy {
+    /**
+     * Waiters block until granted. A background thread periodically builds
+     * the waits-for graph and, for every cycle it finds, aborts the youngest
+     * transaction in the cycle.
+     */
+    DETECTION,
+
+    /**
+     * An older transaction may wait for a younger one; a younger transaction
+     * that conflicts with an older one aborts immediately ("dies").
+     */
+    WAIT_DIE,
+
+    /**
+     * An older transaction aborts ("wounds") the younger transactions it
+     * conflicts with; a younger transaction waits for an older one.
+     */
+    WOUND_WAIT,
+
+    /**
+     * A transaction that has waited longer than the lock timeout aborts,
+     * whether or not it is part of a cycle.
+     */
+    TIMEOUT
+}
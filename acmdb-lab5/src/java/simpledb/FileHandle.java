@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileHandle keeps one open {@link FileChannel} for the file backing a
+ * DbFile, so that reading or writing a page costs a single positional
+ * read(2)/write(2) instead of an open, a seek and a leaked descriptor.
+ * <p>
+ * Positional I/O does not move a shared file pointer, so any number of
+ * threads may read and write different pages at the same time. Appends are
+ * serialized so that concurrent callers each get their own region at the end
+ * of the file.
+ * <p>
+ * The channel is opened on first use and reopened if it has been closed.
+ * Sizes are always asked from the open descriptor rather than cached, since
+ * the file may still be extended by code that does not go through the handle.
+ *
+ * @Threadsafe
+ */
+class FileHandle {
+
+    private final File _file;
+    private volatile FileChannel _channel;
+    private final Object _appendLock = new Object();
+    // serializes gathering writes, which go through the channel position
+    private final Object _gatherLock = new Object();
+
+    FileHandle(File f) {
+        _file = f;
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = _channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = _channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = new RandomAccessFile(_file, "rw").getChannel();
+                    _channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Read up to buf.length bytes starting at offset. Bytes past the end of
+     * the file are left untouched.
+     *
+     * @return the number of bytes read, -1 if offset is past the end of file
+     */
+    public int read(byte[] buf, long offset) throws IOException {
+        return read(ByteBuffer.wrap(buf), offset);
+    }
+
+    /**
+     * Read into the remaining space of buf starting at offset. Bytes past the
+     * end of the file are left untouched.
+     *
+     * @return the number of bytes read, -1 if offset is past the end of file
+     */
+    public int read(ByteBuffer buf, long offset) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n;
+            try {
+                n = channel().read(buf, offset + total);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed under us by close() or by an interrupted thread;
+                // reopen and retry
+                continue;
+            }
+            if (n < 0) return total == 0 ? -1 : total;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Write all of data at offset, extending the file if necessary.
+     */
+    public void write(byte[] data, long offset) throws IOException {
+        write(ByteBuffer.wrap(data), offset);
+    }
+
+    /**
+     * Write the remaining bytes of buf at offset, extending the file if
+     * necessary.
+     */
+    public void write(ByteBuffer buf, long offset) throws IOException {
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            try {
+                pos += channel().write(buf, pos);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Write the remaining bytes of the buffers one after the other, starting
+     * at offset, with as few gathering write(2) calls as the channel allows.
+     * FileChannel has no positional gathering write, so these writes share
+     * the channel position and are serialized among themselves; positional
+     * reads and writes do not use the position and are not held up.
+     */
+    public void write(ByteBuffer[] bufs, long offset) throws IOException {
+        synchronized (_gatherLock) {
+            long pos = offset;
+            int first = 0;
+            while (first < bufs.length) {
+                if (!bufs[first].hasRemaining()) {
+                    first++;
+                    continue;
+                }
+                try {
+                    FileChannel ch = channel();
+                    ch.position(pos);
+                    pos += ch.write(bufs, first, bufs.length - first);
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    continue;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append data at the current end of the file.
+     *
+     * @return the offset the data was written at
+     */
+    public long append(byte[] data) throws IOException {
+        synchronized (_appendLock) {
+            long offset = size();
+            write(data, offset);
+            return offset;
+        }
+    }
+
+    /**
+     * @return the current length of the file in bytes
+     */
+    public long size() throws IOException {
+        if (_channel == null && !_file.exists()) return 0;
+        return channel().size();
+    }
+
+    /**
+     * Map a region of the file into memory. The mapping stays valid after the
+     * handle is closed.
+     *
+     * @see FileChannel#map
+     */
+    public MappedByteBuffer map(FileChannel.MapMode mode, long offset, long length) throws IOException {
+        while (true) {
+            try {
+                return channel().map(mode, offset, length);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Cut the file off at the given length.
+     */
+    public void truncate(long size) throws IOException {
+        while (true) {
+            try {
+                channel().truncate(size);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Force all writes through to the storage device.
+     */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /**
+     * Close the underlying channel. The handle stays usable; the next
+     * operation opens the file again.
+     */
+    public synchronized void close() throws IOException {
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+}
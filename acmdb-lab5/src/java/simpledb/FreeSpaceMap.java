@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are full, so that
+ * {@link HeapFile#insertTuple} can go straight to a page with a free slot
+ * instead of locking and reading every page of the table.
+ * <p>
+ * The map is one bit per page, set when the page is known to be full. It is
+ * updated by {@link HeapPage#insertTuple} and {@link HeapPage#deleteTuple},
+ * whenever a page with free slots is read, and by
+ * {@link BufferPool#discardWriteSet}, which marks the pages of an aborted
+ * transaction free again since its inserts may have filled them. Pages the
+ * map knows nothing about, such as those of a file created by
+ * {@link HeapFileEncoder}, count as free.
+ * <p>
+ * The map is only a hint: a page marked free may turn out to be full, in
+ * which case the inserter marks it and moves on. It is kept in a sidecar
+ * file next to the heap file, and every bit that changes is written through
+ * right away, so the hints survive a restart.
+ * <p>
+ * A page marked full that is not would never be used again, so the sidecar
+ * starts with the length and modification time the heap file had after its
+ * last write through {@link HeapFile}. If the heap file has been written
+ * some other way since, e.g. overwritten by {@link HeapFileEncoder}, the
+ * stamp no longer matches and the map starts out empty again.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    // the stamp: length and modification time of the heap file
+    private static final int HEADER_SIZE = 16;
+
+    private final BitSet _full = new BitSet();
+    private final File _heapFile;
+    private final FileHandle _handle;
+    private long _length;
+    private long _lastModified;
+
+    /**
+     * Open the free space map of the given heap file. A missing, unreadable
+     * or out of date sidecar gives an empty map.
+     */
+    public FreeSpaceMap(File heapFile) {
+        _heapFile = heapFile;
+        _handle = new FileHandle(fileFor(heapFile));
+        _length = heapFile.length();
+        _lastModified = heapFile.lastModified();
+        try {
+            long size = _handle.size();
+            if (size >= HEADER_SIZE && size < Integer.MAX_VALUE) {
+                ByteBuffer data = ByteBuffer.allocate((int) size);
+                _handle.read(data.array(), 0);
+                if (data.getLong() == _length && data.getLong() == _lastModified) {
+                    _full.or(BitSet.valueOf(data));
+                    return;
+                }
+            }
+            // start over, so that no stale bit is read back later
+            _handle.truncate(0);
+            writeStamp();
+        } catch (IOException e) {
+            // start from an empty map; it is only a hint
+        }
+    }
+
+    /**
+     * Return the sidecar file used for the free space map of a heap file.
+     */
+    public static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Record whether a page has a free slot.
+     */
+    public synchronized void setFree(int pageNo, boolean free) {
+        if (_full.get(pageNo) != free) return;
+        _full.set(pageNo, !free);
+        try {
+            _handle.write(new byte[] {byteAt(pageNo / 8)}, HEADER_SIZE + pageNo / 8);
+        } catch (IOException e) {
+            // the in-memory map is still right; the file is only a hint
+        }
+    }
+
+    /**
+     * Record that the heap file has just been written, so that the sidecar
+     * is still taken as up to date when the map is opened again.
+     */
+    public synchronized void heapFileWritten() {
+        long length = _heapFile.length();
+        long lastModified = _heapFile.lastModified();
+        if (length == _length && lastModified == _lastModified) return;
+        _length = length;
+        _lastModified = lastModified;
+        try {
+            writeStamp();
+        } catch (IOException e) {
+            // the map is then dropped on the next open; it is only a hint
+        }
+    }
+
+    private void writeStamp() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(_length).putLong(_lastModified);
+        _handle.write(header.array(), 0);
+    }
+
+    /**
+     * @return true unless the page is known to be full
+     */
+    public synchronized boolean isFree(int pageNo) {
+        return !_full.get(pageNo);
+    }
+
+    /**
+     * Find a page that may have a free slot, looking at start first and then
+     * at the following pages, wrapping around at numPages.
+     *
+     * @return the page number, or -1 if every page is known to be full
+     */
+    public synchronized int findFree(int start, int numPages) {
+        if (numPages <= 0) return -1;
+        int i = _full.nextClearBit(start);
+        if (i < numPages) return i;
+        i = _full.nextClearBit(0);
+        return i < start && i < numPages ? i : -1;
+    }
+
+    private byte byteAt(int index) {
+        byte b = 0;
+        for (int i = 0; i < 8; i++) {
+            if (_full.get(index * 8 + i)) b |= 1 << i;
+        }
+        return b;
+    }
+
+    /**
+     * Release the sidecar file.
+     */
+    public void close() throws IOException {
+        _handle.close();
+    }
+}
@@ -66,6 +66,8 @@ public class HashEquiJoin extends Operator {
         map.clear();
         while (_child2.hasNext()){
             right = _child2.next();
+            // the table outlives the scan, so don't let it pin the pages
+            right.materialize();
             Field key = right.getField(_p.getField2());
             if (!map.containsKey(key)) map.put(key, new ArrayList<>());
             ArrayList<Tuple> Tuplelist = map.get(key);
@@ -0,0 +1,90 @@
+package simpledb;
+
+/**
+ * Static helpers for the slot bitmaps at the start of heap and B+ tree leaf
+ * pages, where slot i is used if bit (i % 8) of byte (i / 8) is set.
+ * <p>
+ * The bitmap is read 64 slots at a time, and used slots are found with
+ * {@link Long#numberOfTrailingZeros}, so walking a sparse page costs a few
+ * word operations instead of a test per slot. Nothing is allocated, so page
+ * iterators built on these helpers only cost the iterator object itself.
+ */
+final class HeaderBitmap {
+
+    private HeaderBitmap() {
+    }
+
+    /**
+     * @return the 64 slots starting at slot 64 * index as a word, slot 64 *
+     *   index in the lowest bit
+     */
+    private static long word(byte[] bitmap, int index) {
+        int start = index << 3;
+        int end = Math.min(start + 8, bitmap.length);
+        long w = 0;
+        for (int i = end - 1; i >= start; i--)
+            w = (w << 8) | (bitmap[i] & 0xFFL);
+        return w;
+    }
+
+    /**
+     * @return the first used slot at or after from and before limit, or -1
+     */
+    static int nextSetBit(byte[] bitmap, int from, int limit) {
+        if (from < 0) from = 0;
+        if (from >= limit) return -1;
+        int index = from >>> 6;
+        long w = word(bitmap, index) & (-1L << from);
+        while (w == 0) {
+            if (++index << 6 >= limit) return -1;
+            w = word(bitmap, index);
+        }
+        int slot = (index << 6) + Long.numberOfTrailingZeros(w);
+        return slot < limit ? slot : -1;
+    }
+
+    /**
+     * @return the first free slot at or after from and before limit, or -1
+     */
+    static int nextClearBit(byte[] bitmap, int from, int limit) {
+        if (from < 0) from = 0;
+        if (from >= limit) return -1;
+        int index = from >>> 6;
+        long w = ~word(bitmap, index) & (-1L << from);
+        while (w == 0) {
+            if (++index << 6 >= limit) return -1;
+            w = ~word(bitmap, index);
+        }
+        int slot = (index << 6) + Long.numberOfTrailingZeros(w);
+        return slot < limit ? slot : -1;
+    }
+
+    /**
+     * @return the last used slot at or before from, or -1
+     */
+    static int prevSetBit(byte[] bitmap, int from) {
+        if (from < 0) return -1;
+        int index = from >>> 6;
+        long w = word(bitmap, index) & (-1L >>> (63 - (from & 63)));
+        while (w == 0) {
+            if (--index < 0) return -1;
+            w = word(bitmap, index);
+        }
+        return (index << 6) + 63 - Long.numberOfLeadingZeros(w);
+    }
+
+    /**
+     * @return the number of used slots before limit
+     */
+    static int cardinality(byte[] bitmap, int limit) {
+        int count = 0;
+        int words = (limit + 63) >>> 6;
+        for (int index = 0; index < words; index++) {
+            long w = word(bitmap, index);
+            int end = limit - (index << 6);
+            if (end < 64) w &= (1L << end) - 1;
+            count += Long.bitCount(w);
+        }
+        return count;
+    }
+}
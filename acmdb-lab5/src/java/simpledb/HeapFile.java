@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -10,6 +11,12 @@ import java.util.*;
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
  *
+ * <p>
+ * A HeapFile can optionally be opened memory-mapped. Pages are then parsed
+ * straight out of the mapping instead of being read into a new array first,
+ * and are copied out of it only once they are changed, which suits large,
+ * mostly read-only tables that are scanned in full.
+ *
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
@@ -24,15 +31,40 @@ public class HeapFile implements DbFile {
      */
     private TupleDesc _tupleDesc;
     private File _file;
-    private int _num_page;
+    private final FileHandle _handle;
+    private final boolean _memoryMapped;
+    private volatile MappedFile _mapped;
+    private volatile FreeSpaceMap _fsm;
 
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            whether pages should be read through a memory mapping of
+     *            the file rather than with read calls
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         _file = f;
-        _num_page = (int) (_file.length() / BufferPool.getPageSize());
+        _handle = new FileHandle(f);
         _tupleDesc = td;
+        _memoryMapped = memoryMapped;
         // some code goes here
     }
 
+    /**
+     * Returns true if pages of this file are read through a memory mapping.
+     */
+    public boolean isMemoryMapped() {
+        return _memoryMapped;
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      *
@@ -73,44 +105,99 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) throws IllegalArgumentException {
         // some code goes here
 //        return null;
+        if (_memoryMapped) return readMappedPage(pid);
         Page _page = null;
         byte[] data = new byte[BufferPool.getPageSize()];
         try{
-            RandomAccessFile _rf = new RandomAccessFile(_file, "r");
-            _rf.seek(pid.pageNumber()*BufferPool.getPageSize());
-            _rf.read(data, 0, BufferPool.getPageSize());
-            _page = new HeapPage((HeapPageId) pid, data);
+            // a page past the end of the file reads as an empty page
+            _handle.read(data, (long) pid.pageNumber() * BufferPool.getPageSize());
+            // the array is ours alone, so the page can keep it
+            _page = new HeapPage((HeapPageId) pid, ByteBuffer.wrap(data));
         } catch (IOException e) {
-            throw new IllegalArgumentException();
+            throw new IllegalArgumentException(e);
         }
         return _page;
     }
 
+    private Page readMappedPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        MappedFile mapped = _mapped;
+        if (mapped == null || mapped.getPageSize() != pageSize) {
+            // (re)create the mapping if the page size has changed under us
+            mapped = new MappedFile(_handle, pageSize);
+            _mapped = mapped;
+        }
+        try {
+            ByteBuffer data = mapped.page(pid.pageNumber());
+            if (data == null) {
+                // a page past the end of the file reads as an empty page
+                return new HeapPage((HeapPageId) pid, ByteBuffer.wrap(HeapPage.createEmptyPageData()));
+            }
+            return new HeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
 
         PageId pid = page.getId();
-        int start_off = BufferPool.getPageSize() * pid.pageNumber();
+        long start_off = (long) BufferPool.getPageSize() * pid.pageNumber();
 
+        _handle.write(page.getPageData(), start_off);
+        getFreeSpaceMap().heapFileWritten();
 
-        try {
-            RandomAccessFile file = new RandomAccessFile(_file, "rw");
-            file.seek(start_off);
-            file.write(page.getPageData());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    
         // some code goes here
         // not necessary for lab1
     }
+
+    // see DbFile.writePages
+    public void writePages(List<Page> pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int i = 0;
+        while (i < pages.size()) {
+            // find the run of consecutive pages starting at i
+            int j = i + 1;
+            while (j < pages.size()
+                    && pages.get(j).getId().pageNumber() == pages.get(j - 1).getId().pageNumber() + 1)
+                j++;
+            ByteBuffer[] run = new ByteBuffer[j - i];
+            for (int k = i; k < j; k++) run[k - i] = ByteBuffer.wrap(pages.get(k).getPageData());
+            _handle.write(run, (long) pageSize * pages.get(i).getId().pageNumber());
+            i = j;
+        }
+        getFreeSpaceMap().heapFileWritten();
+    }
     
+    /**
+     * Returns the map of pages with free slots of this HeapFile, loading it
+     * on first use.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        FreeSpaceMap fsm = _fsm;
+        if (fsm == null) {
+            synchronized (this) {
+                fsm = _fsm;
+                if (fsm == null) {
+                    fsm = new FreeSpaceMap(_file);
+                    _fsm = fsm;
+                }
+            }
+        }
+        return fsm;
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
-        return (int) (_file.length() / BufferPool.getPageSize());
+        try {
+            return (int) (_handle.size() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
     
     // see DbFile.java for javadocs
@@ -118,21 +205,35 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> affect_pages = new ArrayList<>();
-        for (int i = 0; i < numPages(); ++i) {
-            HeapPageId pid = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        BufferPool pool = Database.getBufferPool();
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        int numPages = numPages();
+
+        // each transaction starts looking at its own page, so that concurrent
+        // inserters do not all line up for the first page with room
+        int start = numPages == 0 ? 0 : (int) (tid.getId() % numPages);
+        int pageNo = fsm.findFree(start, numPages);
+        while (pageNo >= 0) {
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            boolean held = pool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() != 0) {
                 page.insertTuple(t);
                 affect_pages.add(page);
                 return affect_pages;
             }
+            // the map was out of date; we only looked at the page, so there
+            // is no need to keep other transactions off it
+            fsm.setFree(pageNo, false);
+            if (!held) pool.releasePage(tid, pid);
+            pageNo = fsm.findFree((pageNo + 1) % numPages, numPages);
         }
-        HeapPageId pid = new HeapPageId(getId(), numPages());
-    
-        HeapPage blankPage = new HeapPage(pid, HeapPage.createEmptyPageData());
-        _num_page++;
+        // every page is full: append an empty page and lock it like any other
+        long offset = _handle.append(HeapPage.createEmptyPageData());
+        fsm.heapFileWritten();
+        HeapPageId pid = new HeapPageId(getId(), (int) (offset / BufferPool.getPageSize()));
+        HeapPage blankPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         blankPage.insertTuple(t);
-        writePage(blankPage);
         affect_pages.add(blankPage);
         return affect_pages;
         // not necessary for lab1
@@ -156,6 +257,7 @@ public class HeapFile implements DbFile {
     
         private TransactionId _tid;
         private int _currentPid;
+        private int _numPages;
         private Iterator<Tuple> _tupleIterator;
     
         public HeapFileIterator(TransactionId tid) {
@@ -165,6 +267,7 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             _currentPid = 0;
+            _numPages = numPages();
             PageId pageId = new HeapPageId(getId(), _currentPid);
             _tupleIterator = ((HeapPage) Database.getBufferPool().getPage(_tid, pageId, Permissions.READ_ONLY)).iterator();
         }
@@ -173,7 +276,10 @@ public class HeapFile implements DbFile {
         public boolean hasNext() throws DbException, TransactionAbortedException {
             if (_tupleIterator == null) return false;
     
-            while (!_tupleIterator.hasNext() && _currentPid < numPages() - 1) {
+            // the page count is only looked up again once the pages counted
+            // at open() are exhausted, to pick up pages appended since
+            while (!_tupleIterator.hasNext()
+                    && (_currentPid < _numPages - 1 || _currentPid < (_numPages = numPages()) - 1)) {
                 _currentPid++;
                 PageId pid = new HeapPageId(getId(), _currentPid);
                 _tupleIterator = ((HeapPage) Database.getBufferPool().getPage(_tid, pid, Permissions.READ_ONLY)).iterator();
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -18,9 +20,13 @@ public class HeapPage implements Page {
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    final FreeSpaceMap fsm;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock=new Object();
+    // the shared buffer the tuples of this page still point into, until
+    // the page makes its own copy; null once it has one
+    private ByteBuffer _source;
     private TransactionId _tid;
 
     /**
@@ -40,27 +46,66 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data.clone()));
+    }
+
+    /**
+     * Create a HeapPage from the bytes between the position and the limit of
+     * a buffer, e.g. a slice of a memory-mapped file. The buffer is retained
+     * as the storage of the page: the tuples on the page are views into it
+     * that decode their fields only when asked for them. The caller must not
+     * change the bytes afterwards.
+     * <p>
+     * A buffer that wraps a whole array also serves as the before-image. Any
+     * other buffer, such as a read-only view of a mapping that a later write
+     * of the page would show through, is copied only when the page is first
+     * changed or its before-image is first asked for, so pages that are only
+     * read are never copied at all. Tuples read from such a page stay valid
+     * as long as the page is locked; call {@link Tuple#materialize} to keep
+     * one for longer.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.td = file.getTupleDesc();
+        this.fsm = file instanceof HeapFile ? ((HeapFile) file).getFreeSpaceMap() : null;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        // the bytes we were built from are exactly what getPageData() would
+        // produce, so an array of them serves as the before-image as well.
+        // Nothing ever writes to it, which is what lets tuples point into it.
+        ByteBuffer buf = data.slice();
+        synchronized(oldDataLock)
+        {
+            if (buf.hasArray() && !buf.isReadOnly() && buf.arrayOffset() == 0
+                    && buf.array().length == buf.capacity())
+                oldData = buf.array();
+            else
+                _source = buf;
+        }
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        try {
+            buf.get(header);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("page data too short", e);
+        }
 
         tuples = new Tuple[numSlots];
         try{
-            // allocate and read the actual records of this page
+            // set up views of the actual records of this page
             for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
+                tuples[i] = readNextTuple(buf,i);
         }catch(NoSuchElementException e){
             e.printStackTrace();
         }
-        dis.close();
 
-        setBeforeImage();
+        // never let the free space map hide a page that has room
+        if (fsm != null && getNumEmptySlots() > 0)
+            fsm.setFree(pid.pageNumber(), true);
     }
 
     /** Retrieve the number of tuples on this page.
@@ -90,9 +135,11 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                copySource();
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            // the array is never written, so the image can share it
+            return new HeapPage(pid,ByteBuffer.wrap(oldDataRef));
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -104,8 +151,29 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
+        }
+    }
+
+    /**
+     * Give the page its own copy of the shared buffer it was built from,
+     * and point the tuples read from that buffer at the copy, so that they
+     * stay as they are when the page is written back. Does nothing if the
+     * page has a copy already. The caller must hold oldDataLock.
+     */
+    private void copySource() {
+        if (_source == null) return;
+        byte[] bytes = new byte[_source.capacity()];
+        ByteBuffer all = _source.duplicate();
+        all.clear();
+        all.get(bytes);
+        ByteBuffer copy = ByteBuffer.wrap(bytes);
+        for (Tuple t : tuples) {
+            if (t != null) t.rebind(_source, copy);
         }
+        // a before-image set since the page was read is newer than the copy
+        if (oldData == null) oldData = bytes;
+        _source = null;
     }
 
     /**
@@ -118,36 +186,18 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Return a view of the tuple in the given slot of the serialized page, or
+     * null if the slot is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple readNextTuple(ByteBuffer buf, int slotId) throws NoSuchElementException {
+        int offset = header.length + slotId * td.getSize();
+        if (offset + td.getSize() > buf.limit())
+            throw new NoSuchElementException("error reading tuple " + slotId);
+        if (!isSlotUsed(slotId))
             return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
 
+        Tuple t = new Tuple(td, buf, offset);
+        t.setRecordId(new RecordId(pid, slotId));
         return t;
     }
 
@@ -163,64 +213,24 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        // a new array is all zeroes, so empty slots and the padding at the
+        // end need no writes at all
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        buf.put(header);
 
         // create the tuples
+        int tupleSize = td.getSize();
         for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+            if (!isSlotUsed(i))
                 continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            buf.position(header.length + i * tupleSize);
+            tuples[i].serialize(buf);
         }
 
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -251,7 +261,12 @@ public class HeapPage implements Page {
             throw new DbException("don't match");
         int tupleId = recordId.tupleno();
         if (!isSlotUsed(tupleId)) throw new DbException("tuple slot is already empty");
+        synchronized(oldDataLock)
+        {
+            copySource();
+        }
         markSlotUsed(tupleId,false);
+        if (fsm != null) fsm.setFree(pid.pageNumber(), true);
         // some code goes here
         // not necessary for lab1
     }
@@ -266,15 +281,18 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
 
         if (!td.equals(t.getTupleDesc())) throw new DbException("mismathc");
-        if (getNumEmptySlots() == 0) throw new DbException("NO space");
-        for (int i = 0; i < numSlots; ++i) {
-            if (!isSlotUsed(i)) {
-                t.setRecordId(new RecordId(pid, i));
-                markSlotUsed(i, true);
-                tuples[i] = t;
-                break;
-            }
+        int i = HeaderBitmap.nextClearBit(header, 0, numSlots);
+        if (i < 0) throw new DbException("NO space");
+        synchronized(oldDataLock)
+        {
+            copySource();
         }
+        t.setRecordId(new RecordId(pid, i));
+        // fill the slot before marking it used, so that a copy of the page
+        // taken meanwhile never sees a used slot without its tuple
+        tuples[i] = t;
+        markSlotUsed(i, true);
+        if (fsm != null && getNumEmptySlots() == 0) fsm.setFree(pid.pageNumber(), false);
         // some code goes here
         // not necessary for lab1
     }
@@ -307,12 +325,16 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int result = 0;
-        for (int i = 0; i < numSlots; ++i) {
-            if (!isSlotUsed(i)) result++;
-        }
         // some code goes here
-        return result;
+        return numSlots - HeaderBitmap.cardinality(header, numSlots);
+    }
+
+    /**
+     * Returns the tuple in a slot, or null if the slot is empty.
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i)) return null;
+        return tuples[i];
     }
 
     /**
@@ -354,15 +376,31 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
+        // some code goes here
+        return new SlotIterator();
+    }
 
-        ArrayList<Tuple> _tuple_list = new ArrayList<>();
-        for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i)) continue;
-            _tuple_list.add(tuples[i]);
+    /**
+     * Walks the used slots straight off the header bitmap, so slots filled
+     * or emptied while the iterator is in use may or may not be returned.
+     */
+    private class SlotIterator implements Iterator<Tuple> {
+        private int next = HeaderBitmap.nextSetBit(header, 0, numSlots);
+
+        public boolean hasNext() {
+            return next >= 0;
         }
 
-        // some code goes here
-        return _tuple_list.iterator();
+        public Tuple next() {
+            if (next < 0) throw new NoSuchElementException();
+            Tuple t = tuples[next];
+            next = HeaderBitmap.nextSetBit(header, next + 1, numSlots);
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
 }
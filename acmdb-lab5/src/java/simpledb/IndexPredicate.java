@@ -21,6 +21,8 @@ public class IndexPredicate implements Serializable {
      */
     private Field _fvalue;
     private Predicate.Op _op;
+    private Field _upperValue;
+    private Predicate.Op _upperOp;
 
     public IndexPredicate(Predicate.Op op, Field fvalue) {
         _op = op;
@@ -28,6 +30,26 @@ public class IndexPredicate implements Serializable {
         // some code goes here
     }
 
+    /**
+     * Constructor for a range predicate, which also bounds the field from
+     * above. With CompositeField values this selects a range of a key
+     * prefix, e.g. the keys whose first field is 7 and whose second field
+     * lies between two values.
+     *
+     * @param op The operation for the lower end of the range
+     * @param fvalue The value at the lower end of the range
+     * @param upperOp Either Predicate.Op.LESS_THAN or
+     *   Predicate.Op.LESS_THAN_OR_EQ
+     * @param upperValue The value at the upper end of the range
+     */
+    public IndexPredicate(Predicate.Op op, Field fvalue, Predicate.Op upperOp, Field upperValue) {
+        this(op, fvalue);
+        if (upperOp != Predicate.Op.LESS_THAN && upperOp != Predicate.Op.LESS_THAN_OR_EQ)
+            throw new IllegalArgumentException("upper bound must be LESS_THAN or LESS_THAN_OR_EQ");
+        _upperOp = upperOp;
+        _upperValue = upperValue;
+    }
+
     public Field getField() {
         // some code goes here
         return _fvalue;
@@ -38,6 +60,16 @@ public class IndexPredicate implements Serializable {
         return _op;
     }
 
+    /** @return the value at the upper end of the range, or null if there is no upper bound */
+    public Field getUpperField() {
+        return _upperValue;
+    }
+
+    /** @return the operation for the upper end of the range, or null if there is no upper bound */
+    public Predicate.Op getUpperOp() {
+        return _upperOp;
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -46,7 +78,9 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         // some code goes here
         if (ipd == null) return false;
-        return (_op.equals(ipd.getOp()) && _fvalue.equals(ipd.getField()));
+        return (_op.equals(ipd.getOp()) && _fvalue.equals(ipd.getField())
+                && _upperOp == ipd.getUpperOp()
+                && (_upperValue == null ? ipd.getUpperField() == null : _upperValue.equals(ipd.getUpperField())));
     }
 
 }
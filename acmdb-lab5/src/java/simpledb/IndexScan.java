@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an operator which reads the tuples of a table whose value of
+ * an indexed field matches a predicate, through a secondary index on that
+ * field. The tuples come in order of the indexed field.
+ */
+public class IndexScan implements DbIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private TransactionId tid;
+	private TupleDesc myTd;
+	private int field;
+	private IndexPredicate ipred;
+	private transient DbFileIterator it;
+	private String tablename;
+	private String alias;
+
+	/**
+	 * Creates a scan of a table through a secondary index as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser); the returned
+	 *            tupleDesc should have fields with name tableAlias.fieldName
+	 * @param field
+	 *            the indexed field
+	 * @param ipred
+	 *            The index predicate to match on the indexed field. If null,
+	 *            the scan returns all tuples in order of the indexed field
+	 * @throws NoSuchElementException if the field has no secondary index
+	 */
+	public IndexScan(TransactionId tid, int tableid, String tableAlias, int field, IndexPredicate ipred) {
+		this.tid = tid;
+		this.field = field;
+		this.ipred = ipred;
+		reset(tableid, tableAlias);
+	}
+
+	public IndexScan(TransactionId tid, int tableid, int field, IndexPredicate ipred) {
+		this(tid, tableid, Database.getCatalog().getTableName(tableid), field, ipred);
+	}
+
+	/**
+	 * @return
+	 *       return the table name of the table the operator scans. This should
+	 *       be the actual name of the table in the catalog of the database
+	 * */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 * */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * Reset the tableid, and tableAlias of this operator.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @throws NoSuchElementException if the field has no secondary index
+	 */
+	public void reset(int tableid, String tableAlias) {
+		SecondaryIndex index = Database.getCatalog().getIndex(tableid, field);
+		if(index == null) {
+			throw new NoSuchElementException("no index on field " + field + " of table " + tableid);
+		}
+		this.isOpen = false;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(tableid);
+		this.it = index.iterator(tid, ipred);
+		myTd = Database.getCatalog().getTupleDesc(tableid);
+		String[] newNames = new String[myTd.numFields()];
+		Type[] newTypes = new Type[myTd.numFields()];
+		for (int i = 0; i < myTd.numFields(); i++) {
+			newNames[i] = tableAlias + "." + myTd.getFieldName(i);
+			newTypes[i] = myTd.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one DbIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc with field names from the underlying table,
+	 * prefixed with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
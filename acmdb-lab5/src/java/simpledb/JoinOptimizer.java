@@ -244,6 +244,8 @@ public class JoinOptimizer {
         // some code goes here
         //Replace the following
         int num = joins.size();
+        if (num == 0)
+            return joins;
         PlanCache planCache = new PlanCache();
         for (int i = 0; i <= num; ++i) {
             Set <Set<LogicalJoinNode>> subsets = this.enumerateSubsets(this.joins, i);
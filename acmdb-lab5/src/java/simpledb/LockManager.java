@@ -1,199 +1,531 @@
 package simpledb;
 
-import simpledb.PageId;
-import simpledb.Permissions;
-import simpledb.TransactionAbortedException;
-import simpledb.TransactionId;
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockManager implements page-level shared/exclusive locking for the
+ * BufferPool.
+ * <p>
+ * Every page that is locked or waited for owns a {@link LockState} holding the
+ * current holders and a FIFO queue of waiting requests. The state is dropped
+ * again once it has neither, so the table only grows with the pages in use. A request that cannot
+ * be granted immediately is appended to the queue and its thread parks on the
+ * lock state's monitor; it is woken only when a holder releases the page or
+ * when the request is aborted. Requests are granted strictly in queue order,
+ * except that a transaction upgrading its shared lock to an exclusive one is
+ * queued ahead of requests from transactions that hold nothing on the page.
+ * <p>
+ * How deadlocks are handled is decided by the {@link DeadlockPolicy}. With
+ * {@link DeadlockPolicy#DETECTION} a background thread, running only while
+ * some request is waiting, checks the waits-for graph at a fixed interval and
+ * aborts the youngest transaction of every cycle it finds. The other policies
+ * are applied by the waiting thread itself. A transaction chosen as a victim
+ * gets a {@link TransactionAbortedException} from its pending (or next) lock
+ * request. A victim that asks for no further lock is not aborted after all;
+ * it finishes, and releases what the older transaction waits for, as usual.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    private final ConcurrentHashMap<PageId, Object> locks;
-    private final ConcurrentHashMap<PageId, TransactionId> exclusiveLocks;
-    private final ConcurrentHashMap<PageId, ConcurrentLinkedDeque<TransactionId>> sharedLocks;
-    private final ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<PageId>> transactionHoldLocks;
-    private final ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<PageId>> transactionHoldXLocks;
-    private final ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<TransactionId>> dependencyGraph;
 
-    private LockManager() {
-        locks = new ConcurrentHashMap<>();
-        sharedLocks = new ConcurrentHashMap<>();
-        exclusiveLocks = new ConcurrentHashMap<>();
-        transactionHoldLocks = new ConcurrentHashMap<>();
-        transactionHoldXLocks = new ConcurrentHashMap<>();
-        dependencyGraph = new ConcurrentHashMap<>();
-    }
+    /** Default interval between two runs of the deadlock detector */
+    public static final long DEFAULT_DETECTION_INTERVAL_MS = 20;
+    /** Default time a request may wait under {@link DeadlockPolicy#TIMEOUT} */
+    public static final long DEFAULT_LOCK_TIMEOUT_MS = 500;
 
+    private static class Request {
+        final TransactionId tid;
+        final boolean exclusive;
+        final boolean upgrade;
+        boolean granted;
 
-    public static LockManager GetLockManager() {
-        return new LockManager();
+        Request(TransactionId tid, boolean exclusive, boolean upgrade) {
+            this.tid = tid;
+            this.exclusive = exclusive;
+            this.upgrade = upgrade;
+        }
     }
 
+    /**
+     * The lock of one page. All fields are protected by the object's monitor,
+     * which is also what waiters park on.
+     */
+    private class LockState {
+        final PageId pid;
+        // holder -> true if the holder has an exclusive lock
+        final HashMap<TransactionId, Boolean> holders = new HashMap<>();
+        final LinkedList<Request> waiters = new LinkedList<>();
+        // set once the state has been dropped from the lock table; whoever
+        // finds it set must look the page up again
+        boolean removed;
+
+        LockState(PageId pid) {
+            this.pid = pid;
+        }
+
+        boolean hasExclusiveHolder() {
+            return holders.containsValue(Boolean.TRUE);
+        }
+
+        boolean compatible(Request r) {
+            if (r.upgrade) return holders.size() == 1 && holders.containsKey(r.tid);
+            if (r.exclusive) return holders.isEmpty();
+            return !hasExclusiveHolder();
+        }
+
+        /**
+         * Grant queued requests in FIFO order, stopping at the first one
+         * that conflicts with the current holders.
+         */
+        void grantWaiters() {
+            boolean grantedAny = false;
+            Iterator<Request> it = waiters.iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                if (!compatible(r)) break;
+                it.remove();
+                holders.put(r.tid, r.exclusive);
+                _held.computeIfAbsent(r.tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                r.granted = true;
+                grantedAny = true;
+            }
+            if (grantedAny) notifyAll();
+        }
+
+        /** Drop this state from the lock table if nobody holds or wants it */
+        void removeIfUnused() {
+            if (removed || !holders.isEmpty() || !waiters.isEmpty()) return;
+            removed = true;
+            _locks.remove(pid, this);
+        }
 
-    private boolean hasLock(TransactionId tid, PageId pid, boolean isReadOnly) {
-        if (exclusiveLocks.containsKey(pid) && tid.equals(exclusiveLocks.get(pid))) {
-            return true;
+        /**
+         * @return the transactions the given waiting request is blocked by:
+         *   incompatible holders, and incompatible requests queued ahead of it
+         */
+        Set<TransactionId> blockersOf(TransactionId tid) {
+            Set<TransactionId> result = new HashSet<>();
+            Request mine = null;
+            for (Request r : waiters) {
+                if (r.tid.equals(tid)) {
+                    mine = r;
+                    break;
+                }
+            }
+            if (mine == null) return result;
+            for (Map.Entry<TransactionId, Boolean> h : holders.entrySet()) {
+                if (h.getKey().equals(tid)) continue;
+                if (mine.exclusive || h.getValue()) result.add(h.getKey());
+            }
+            for (Request r : waiters) {
+                if (r == mine) break;
+                if (!r.tid.equals(tid) && (mine.exclusive || r.exclusive)) result.add(r.tid);
+            }
+            return result;
         }
-        return isReadOnly && sharedLocks.containsKey(pid) && sharedLocks.get(pid).contains(tid);
     }
 
-    private Object getLock(PageId pid) {
-        locks.putIfAbsent(pid, new Object());
-        return locks.get(pid);
+    private final ConcurrentHashMap<PageId, LockState> _locks;
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> _held;
+    private final ConcurrentHashMap<TransactionId, PageId> _waitingOn;
+    // transactions chosen as victims that have not completed yet -> true
+    // once one of their requests has been aborted
+    private final ConcurrentHashMap<TransactionId, Boolean> _victims;
+
+    private volatile DeadlockPolicy _policy = DeadlockPolicy.DETECTION;
+    private volatile long _detectionIntervalMs = DEFAULT_DETECTION_INTERVAL_MS;
+    private volatile long _lockTimeoutMs = DEFAULT_LOCK_TIMEOUT_MS;
+    private Thread _detector; // protected by this
+
+    private final AtomicLong _deadlocksFound = new AtomicLong();
+    private final AtomicLong _victimsAborted = new AtomicLong();
+
+    public LockManager() {
+        _locks = new ConcurrentHashMap<>();
+        _held = new ConcurrentHashMap<>();
+        _waitingOn = new ConcurrentHashMap<>();
+        _victims = new ConcurrentHashMap<>();
     }
 
-    public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-        if (perm == Permissions.READ_ONLY) {
-            if (hasLock(tid, pid, true)) return true;
-            acquireSLock(tid, pid);
-        } else if (perm == Permissions.READ_WRITE) {
-            if (hasLock(tid, pid, false)) return true;
-            acquireXLock(tid, pid);
-        }
-        updateTransactionLocks(tid, pid);
-        return true;
+    /** Set the policy used for requests that start waiting from now on */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        _policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return _policy;
+    }
+
+    /** Set how often the deadlock detector runs under {@link DeadlockPolicy#DETECTION} */
+    public void setDetectionInterval(long ms) {
+        _detectionIntervalMs = ms;
+    }
+
+    /** Set how long a request may wait under {@link DeadlockPolicy#TIMEOUT} */
+    public void setLockTimeout(long ms) {
+        _lockTimeoutMs = ms;
     }
 
-    private void acquireSLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        Object lock = getLock(pid);
+    /** Return the number of waits-for cycles found by the deadlock detector */
+    public long getDeadlockCount() {
+        return _deadlocksFound.get();
+    }
 
+    /**
+     * Return the number of transactions aborted by the deadlock policy. A
+     * victim counts once a lock request of it has actually been aborted; a
+     * wounded transaction that completes without asking for another lock
+     * is not counted.
+     */
+    public long getVictimCount() {
+        return _victimsAborted.get();
+    }
+
+    private LockState stateFor(PageId pid) {
+        return _locks.computeIfAbsent(pid, LockState::new);
+    }
+
+    /**
+     * Acquire a lock on the specified page on behalf of the specified
+     * transaction, blocking until it is granted.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        if (_victims.containsKey(tid)) throw victimAborted(tid);
+        boolean exclusive = perm.equals(Permissions.READ_WRITE);
+        LockState state;
+        Request request;
         while (true) {
-            synchronized (lock) {
-                TransactionId holder = exclusiveLocks.get(pid);
-                boolean notBlocked = (holder == null || holder.equals(tid));
-
-                if (notBlocked) {
-                    removeDependency(tid);
-                    addSTransaction(pid, tid);
-                    return;
-                }
-                ArrayList<TransactionId> holders = new ArrayList<>();
-                holders.add(holder);
-                updateDependency(tid, holders);
+            state = stateFor(pid);
+            synchronized (state) {
+                // lost a race with the last holder leaving; try again
+                if (state.removed) continue;
+                request = enqueue(state, tid, exclusive);
+                if (request == null) return;
+                state.grantWaiters();
+                break;
             }
         }
+
+        if (!request.granted) waitFor(state, request);
     }
 
-    private void acquireXLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        Object lock = getLock(pid);
+    /**
+     * Queue a request for a lock on the page. The caller must hold the
+     * monitor of the state.
+     *
+     * @return the request, or null if the transaction holds the lock already
+     */
+    private Request enqueue(LockState state, TransactionId tid, boolean exclusive) {
+        Boolean held = state.holders.get(tid);
+        if (held != null && (held || !exclusive)) return null;
 
-        while (true) {
-            synchronized (lock) {
-                ArrayList<TransactionId> holders = new ArrayList<>();
-                if (exclusiveLocks.containsKey(pid)) {
-                    holders.add(exclusiveLocks.get(pid));
-                }
-                if (sharedLocks.containsKey(pid)) {
-                    holders.addAll(sharedLocks.get(pid));
+        Request request = new Request(tid, exclusive, held != null);
+        if (request.upgrade) {
+            // upgrades go ahead of everybody except earlier upgrades
+            ListIterator<Request> it = state.waiters.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().upgrade) {
+                    it.previous();
+                    break;
                 }
+            }
+            it.add(request);
+        } else {
+            state.waiters.addLast(request);
+        }
+        return request;
+    }
 
-                boolean notBlocked = holders.size() == 0 || (holders.size() == 1 && holders.get(0).equals(tid));
+    private void waitFor(LockState state, Request request) throws TransactionAbortedException {
+        TransactionId tid = request.tid;
+        DeadlockPolicy policy = _policy;
+        long deadline = System.currentTimeMillis() + _lockTimeoutMs;
+        _waitingOn.put(tid, state.pid);
+        if (policy == DeadlockPolicy.DETECTION) startDetector();
+        boolean done = false;
+        try {
+            while (true) {
+                List<TransactionId> toWound = null;
+                synchronized (state) {
+                    if (request.granted) {
+                        done = true;
+                        return;
+                    }
+                    if (_victims.containsKey(tid)) throw victimAborted(tid);
 
-                if (notBlocked) {
-                    removeDependency(tid);
-                    addXTransaction(pid, tid);
-                    return;
+                    long timeout = 0;
+                    if (policy == DeadlockPolicy.WAIT_DIE || policy == DeadlockPolicy.WOUND_WAIT) {
+                        for (TransactionId blocker : state.blockersOf(tid)) {
+                            boolean older = blocker.getId() < tid.getId();
+                            if (policy == DeadlockPolicy.WAIT_DIE && older) {
+                                _victimsAborted.incrementAndGet();
+                                throw new TransactionAbortedException();
+                            }
+                            // a victim that is already wounded still holds its
+                            // locks until its next request; wait for it instead
+                            // of wounding it again
+                            if (policy == DeadlockPolicy.WOUND_WAIT && !older && !_victims.containsKey(blocker)) {
+                                if (toWound == null) toWound = new ArrayList<>();
+                                toWound.add(blocker);
+                            }
+                        }
+                    } else if (policy == DeadlockPolicy.TIMEOUT) {
+                        timeout = deadline - System.currentTimeMillis();
+                        if (timeout <= 0) {
+                            _victimsAborted.incrementAndGet();
+                            throw new TransactionAbortedException();
+                        }
+                    }
+
+                    if (toWound == null) {
+                        try {
+                            state.wait(timeout);
+                        } catch (InterruptedException e) {
+                            throw new TransactionAbortedException();
+                        }
+                    }
+                }
+                // wound outside of our own lock state, the victims may be
+                // waiting on other pages
+                if (toWound != null) {
+                    for (TransactionId victim : toWound) abortVictim(victim);
                 }
-                updateDependency(tid, holders);
             }
+        } finally {
+            _waitingOn.remove(tid);
+            if (!done) cancel(state, request);
         }
     }
 
-    private void addSTransaction(PageId pid, TransactionId tid) {
-        sharedLocks.putIfAbsent(pid, new ConcurrentLinkedDeque<>());
-        sharedLocks.get(pid).add(tid);
+    /**
+     * Withdraw a request that will not be waited for any more. If it was
+     * granted in the meantime, the lock is released again.
+     */
+    private void cancel(LockState state, Request request) {
+        synchronized (state) {
+            if (request.granted) {
+                state.holders.remove(request.tid);
+                Set<PageId> pages = _held.get(request.tid);
+                if (pages != null) pages.remove(state.pid);
+            } else {
+                state.waiters.remove(request);
+            }
+            state.grantWaiters();
+            state.removeIfUnused();
+        }
     }
 
-    private void addXTransaction(PageId pid, TransactionId tid) {
-        exclusiveLocks.put(pid, tid);
-        transactionHoldXLocks.putIfAbsent(tid, new ConcurrentLinkedDeque<>());
-        transactionHoldXLocks.get(tid).add(pid);
+    /**
+     * Mark a transaction as a victim and wake it up if it is waiting, so that
+     * its pending or next lock request aborts.
+     */
+    private void abortVictim(TransactionId victim) {
+        if (_victims.putIfAbsent(victim, Boolean.FALSE) != null) return;
+        PageId pid = _waitingOn.get(victim);
+        LockState state = pid == null ? null : _locks.get(pid);
+        if (state != null) {
+            synchronized (state) {
+                state.notifyAll();
+            }
+        }
     }
 
+    /**
+     * @return the exception that aborts a request of a victim, counting the
+     *   victim the first time
+     */
+    private TransactionAbortedException victimAborted(TransactionId tid) {
+        if (_victims.replace(tid, Boolean.FALSE, Boolean.TRUE)) _victimsAborted.incrementAndGet();
+        return new TransactionAbortedException();
+    }
 
-    private void removeDependency(TransactionId tid) {
-        synchronized (dependencyGraph) {
-            dependencyGraph.remove(tid);
-            for (TransactionId curtid : dependencyGraph.keySet()) {
-                dependencyGraph.get(curtid).remove(tid);
-            }
-        }
+    private synchronized void startDetector() {
+        if (_detector != null) return;
+        _detector = new Thread(this::runDetector, "deadlock-detector");
+        _detector.setDaemon(true);
+        _detector.start();
     }
 
-    private void updateDependency(TransactionId acquirer, ArrayList<TransactionId> holders)
-            throws TransactionAbortedException {
-        dependencyGraph.putIfAbsent(acquirer, new ConcurrentLinkedDeque<>());
-        boolean hasChange = false;
-        ConcurrentLinkedDeque<TransactionId> childs = dependencyGraph.get(acquirer);
-        for (TransactionId holder : holders) {
-            if (!childs.contains(holder) && !holder.equals(acquirer)) {
-                hasChange = true;
-                dependencyGraph.get(acquirer).add(holder);
+    /**
+     * Body of the deadlock detector thread. It exits as soon as nobody is
+     * waiting and is restarted by the next request that has to wait.
+     */
+    private void runDetector() {
+        while (true) {
+            try {
+                Thread.sleep(_detectionIntervalMs);
+            } catch (InterruptedException e) {
+                break;
             }
+            synchronized (this) {
+                if (_waitingOn.isEmpty()) break;
+            }
+            detectDeadlocks();
         }
-        if (hasChange) {
-            checkDeadLock(acquirer, new HashSet<>());
+        synchronized (this) {
+            _detector = null;
         }
     }
 
+    /**
+     * Build the waits-for graph of all waiting requests and abort the
+     * youngest transaction of each cycle.
+     */
+    void detectDeadlocks() {
+        HashMap<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        for (TransactionId tid : _waitingOn.keySet()) {
+            if (!_victims.containsKey(tid)) graph.put(tid, blockersOf(tid));
+        }
 
-    private void checkDeadLock(TransactionId root, HashSet<TransactionId> visit) throws TransactionAbortedException {
-        // DFS Checking self-loop
-        if (!dependencyGraph.containsKey(root))
-            return;
-        for (TransactionId child : dependencyGraph.get(root)) {
-            if (visit.contains(child)) {
-                throw new TransactionAbortedException();
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            // the snapshot was taken one lock state at a time; make sure the
+            // cycle still exists before acting on it
+            boolean confirmed = true;
+            for (int i = 0; i < cycle.size() && confirmed; i++) {
+                TransactionId from = cycle.get(i);
+                TransactionId to = cycle.get((i + 1) % cycle.size());
+                confirmed = blockersOf(from).contains(to);
             }
-            visit.add(child);
-            checkDeadLock(child, visit);
-            visit.remove(child);
+            TransactionId victim = cycle.get(0);
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId()) victim = t;
+            }
+            if (confirmed) {
+                _deadlocksFound.incrementAndGet();
+                abortVictim(victim);
+            }
+            graph.remove(victim);
         }
     }
 
-    private void updateTransactionLocks(TransactionId tid, PageId pid) {
-        transactionHoldLocks.putIfAbsent(tid, new ConcurrentLinkedDeque<>());
-        transactionHoldLocks.get(tid).add(pid);
+    /**
+     * @return the transactions of some cycle in the graph, in waits-for
+     *   order, or null if the graph is acyclic
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start)) continue;
+            // iterative DFS; path holds the gray nodes
+            List<TransactionId> path = new ArrayList<>();
+            List<Iterator<TransactionId>> edges = new ArrayList<>();
+            Set<TransactionId> onPath = new HashSet<>();
+            path.add(start);
+            onPath.add(start);
+            edges.add(graph.get(start).iterator());
+            while (!path.isEmpty()) {
+                Iterator<TransactionId> it = edges.get(edges.size() - 1);
+                if (!it.hasNext()) {
+                    TransactionId t = path.remove(path.size() - 1);
+                    edges.remove(edges.size() - 1);
+                    onPath.remove(t);
+                    done.add(t);
+                    continue;
+                }
+                TransactionId next = it.next();
+                if (onPath.contains(next)) {
+                    return new ArrayList<>(path.subList(path.indexOf(next), path.size()));
+                }
+                Set<TransactionId> out = graph.get(next);
+                if (out == null || done.contains(next)) continue;
+                path.add(next);
+                onPath.add(next);
+                edges.add(out.iterator());
+            }
+        }
+        return null;
     }
 
+    private Set<TransactionId> blockersOf(TransactionId tid) {
+        PageId pid = _waitingOn.get(tid);
+        if (pid == null) return Collections.emptySet();
+        LockState state = _locks.get(pid);
+        if (state == null) return Collections.emptySet();
+        synchronized (state) {
+            return state.blockersOf(tid);
+        }
+    }
 
-    public void releasePage(TransactionId tid, PageId pid) {
-        if (holdsLock(tid, pid)) {
-            Object lock = getLock(pid);
-            synchronized (lock) {
-                if (sharedLocks.containsKey(pid)) {
-                    sharedLocks.get(pid).remove(tid);
-                }
-                if (exclusiveLocks.containsKey(pid) && exclusiveLocks.get(pid).equals(tid)) {
-                    exclusiveLocks.remove(pid);
-                }
-                if (transactionHoldLocks.containsKey(tid)) {
-                    transactionHoldLocks.get(tid).remove(pid);
-                }
-                if (transactionHoldXLocks.containsKey(tid)) {
-                    transactionHoldXLocks.get(tid).remove(pid);
-                }
+    /**
+     * Release the lock the transaction holds on a page and wake up the
+     * requests that can now be granted.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        LockState state = _locks.get(pid);
+        if (state != null) {
+            synchronized (state) {
+                state.holders.remove(tid);
+                state.grantWaiters();
+                state.removeIfUnused();
             }
         }
+        Set<PageId> pages = _held.get(tid);
+        if (pages != null) pages.remove(pid);
     }
 
-    public void releasePages(TransactionId tid) {
-        if (transactionHoldLocks.containsKey(tid)) {
-            for (PageId pid : transactionHoldLocks.get(tid)) {
-                releasePage(tid, pid);
+    /**
+     * Release every lock held by the transaction.
+     */
+    public void releaseAllLocks(TransactionId tid) {
+        _victims.remove(tid);
+        Set<PageId> pages = _held.remove(tid);
+        if (pages == null) return;
+        for (PageId pid : pages) {
+            LockState state = _locks.get(pid);
+            if (state == null) continue;
+            synchronized (state) {
+                state.holders.remove(tid);
+                state.grantWaiters();
+                state.removeIfUnused();
             }
         }
-        transactionHoldXLocks.remove(tid);
     }
 
+    /** Return true if the transaction holds any lock on the page */
     public boolean holdsLock(TransactionId tid, PageId pid) {
-        return hasLock(tid, pid, true) || hasLock(tid, pid, false);
+        LockState state = _locks.get(pid);
+        if (state == null) return false;
+        synchronized (state) {
+            return state.holders.containsKey(tid);
+        }
+    }
+
+    /** Return true if the transaction holds an exclusive lock on the page */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        LockState state = _locks.get(pid);
+        if (state == null) return false;
+        synchronized (state) {
+            return Boolean.TRUE.equals(state.holders.get(tid));
+        }
+    }
+
+    /** Return the number of pages that are locked or waited for */
+    int getLockStateCount() {
+        return _locks.size();
     }
 
-    public ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<PageId>> getDirtyPages() {
-        return transactionHoldXLocks;
+    /** Return a snapshot of the pages the transaction holds locks on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = _held.get(tid);
+        if (pages == null) return Collections.emptySet();
+        return new HashSet<>(pages);
     }
-}
\ No newline at end of file
+}
@@ -2,8 +2,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,40 +38,78 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p> BufferPool logs a page (and forces the log) while it holds the latch
+of the frame the page lives in, so a thread holding the LogFile monitor
+must never wait for a frame latch.  Operations that write or discard
+buffer pool pages, such as rollback and checkpointing, therefore touch
+the BufferPool only while they are outside the LogFile monitor.
+
+<p> <u> Group commit: </u>
+<p>
+
+Records are appended to an in-memory log buffer, which is written to
+the file in one piece when it fills up or when the log is forced.  A
+committing transaction does not force the log itself: it appends its
+COMMIT record and waits for a flusher thread, which writes out the
+buffer and forces the file once for every commit that queued up in the
+meantime.  The force happens outside the LogFile monitor, so new
+records keep being appended while the disk is busy.  The flusher is
+started by the first commit and exits once commits stop coming.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The file LogFile is created with is the manifest of the log.  It
+holds the LSN of the last written checkpoint, or -1 if there are no
+checkpoints, the first LSN recovery may need, and the size of the
+segments.
 
-<li> All additional data in the log consists of log records.  Log
+<li> Log records are written to segment files next to the manifest,
+named after it with the number of the segment appended.  Segment n holds
+the bytes of the log from LSN n * segment size on; records can cross
+from one segment into the next.  The log starts at LSN 8.  Truncating
+the log deletes the segments that end before the first LSN that is
+still needed.
+
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA_UPDATE,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  Pages are identified by
+the tag their class is registered under with PageCodecs, which is also
+used to rebuild them.
+
+<li>DELTA_UPDATE RECORDS describe the same change as an UPDATE record
+more compactly: the page tag and id, followed by the byte ranges of
+the page that changed, with their old and new contents (see PageDelta).
+They are what logWrite() normally writes.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction; then the
+long integer offset the log had reached when the dirty page table was
+taken, an integer count of dirty pages, and for each an integer count,
+the ints of its serialized page id, and its recLSN: a long integer
+offset no later than any record the page's unwritten changes can have.
 
 </ul>
 
@@ -73,21 +117,51 @@ for each active transaction.
 
 public class LogFile {
 
-    final File logFile;
-    private RandomAccessFile raf;
+    /** Records are written out once this many bytes are buffered */
+    public static final int LOG_BUFFER_SIZE = 64 * 1024;
+    /** The group commit flusher exits after being idle this long */
+    static final long FLUSHER_IDLE_MS = 1000;
+    /** Size of the segment files of a new log */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    final File logFile; // the manifest
+    private final RandomAccessFile manifest;
+    private int segmentSize; //protected by this
+    private int newSegmentSize = DEFAULT_SEGMENT_SIZE; //protected by this
+    private long checkpointLsn = NO_CHECKPOINT_ID; //protected by this
+    private long firstLsn = LONG_SIZE; // earliest LSN still needed //protected by this
+    // segments opened for writing and not forced since, by number; the
+    // segment the log ends in stays open //protected by this
+    private final TreeMap<Long, RandomAccessFile> openSegments = new TreeMap<Long, RandomAccessFile>();
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
+    // records appended since the last write to the file //protected by this
+    private final ByteArrayOutputStream logBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(logBuffer);
+    private long fileEnd; // LSN up to which the log is in the segments //protected by this
+
+    private Thread flusher; //protected by this
+    private long forceRequested = -1; // highest LSN a committer waits for //protected by this
+    private IOException flusherFailure; //protected by this
+    private volatile long groupCommitDelayMicros = 0;
+    private volatile boolean deltaLogging = true;
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private long forceCount = 0; //protected by this
+
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_UPDATE_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int MANIFEST_SIZE = 2 * LONG_SIZE + INT_SIZE;
 
     long currentOffset = -1;//protected by this
+    long forcedOffset = -1; // log is on disk up to here //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
@@ -102,11 +176,19 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The name of the log's manifest
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        manifest = new RandomAccessFile(f, "rw");
+        if (manifest.length() >= MANIFEST_SIZE) {
+            checkpointLsn = manifest.readLong();
+            firstLsn = manifest.readLong();
+            segmentSize = manifest.readInt();
+        } else {
+            segmentSize = DEFAULT_SEGMENT_SIZE;
+        }
+        fileEnd = firstLsn;
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,17 +209,122 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            for (RandomAccessFile seg : openSegments.values())
+                seg.close();
+            openSegments.clear();
+            for (long n : segmentsOnDisk())
+                segmentFile(n).delete();
+            segmentSize = newSegmentSize;
+            checkpointLsn = NO_CHECKPOINT_ID;
+            firstLsn = LONG_SIZE;
+            writeManifest();
+            logBuffer.reset();
+            fileEnd = firstLsn;
+            currentOffset = fileEnd;
         }
     }
 
+    // write and force the manifest //protected by this
+    private void writeManifest() throws IOException {
+        manifest.seek(0);
+        manifest.writeLong(checkpointLsn);
+        manifest.writeLong(firstLsn);
+        manifest.writeInt(segmentSize);
+        manifest.getChannel().force(true);
+    }
+
+    /** Return the file of the segment with the given number */
+    File segmentFile(long n) {
+        return new File(logFile.getPath() + "." + n);
+    }
+
+    // numbers of the segment files on disk, in order
+    private List<Long> segmentsOnDisk() {
+        List<Long> segments = new ArrayList<Long>();
+        String prefix = logFile.getName() + ".";
+        String[] names = logFile.getAbsoluteFile().getParentFile().list();
+        if (names == null)
+            return segments;
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                segments.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /** Set the size of the segment files.  It applies to a log that is
+        started afresh by the first append after construction; a log that
+        is recovered keeps the segment size it was written with.
+    */
+    public synchronized void setSegmentSize(int bytes) {
+        newSegmentSize = bytes;
+    }
+
+    // offset the next record will be written at //protected by this
+    private long endOfLog() {
+        return fileEnd + logBuffer.size();
+    }
+
+    // called after a record has been appended to the buffer
+    private void postAppend() throws IOException {
+        currentOffset = endOfLog();
+        if (logBuffer.size() >= LOG_BUFFER_SIZE)
+            writeBuffer();
+    }
+
+    // write the buffered records to the end of the log //protected by this
+    private void writeBuffer() throws IOException {
+        if (logBuffer.size() == 0)
+            return;
+        byte[] data = logBuffer.toByteArray();
+        int written = 0;
+        while (written < data.length) {
+            long n = fileEnd / segmentSize;
+            int offset = (int) (fileEnd % segmentSize);
+            int length = Math.min(data.length - written, segmentSize - offset);
+            RandomAccessFile seg = openSegments.get(n);
+            if (seg == null) {
+                seg = new RandomAccessFile(segmentFile(n), "rw");
+                openSegments.put(n, seg);
+            }
+            seg.seek(offset);
+            seg.write(data, written, length);
+            written += length;
+            fileEnd += length;
+        }
+        logBuffer.reset();
+    }
+
+    // close the segments before segment number tail, once they have been
+    // forced //protected by this
+    private void releaseSegments(long tail) throws IOException {
+        while (!openSegments.isEmpty() && openSegments.firstKey() < tail)
+            openSegments.pollFirstEntry().getValue().close();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Return the number of times the log file has been forced to disk */
+    public synchronized long getForceCount() {
+        return forceCount;
+    }
+
+    /** Set how long the group commit flusher waits for more commits to
+        join a batch before it forces the log.  With the default of zero
+        a batch holds whatever commits arrived while the previous force
+        was in progress.
+    */
+    public void setGroupCommitDelay(long micros) {
+        groupCommitDelayMicros = micros;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -149,19 +336,19 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                postAppend();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,7 +356,8 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with any other
+        transactions committing at the same time.
 
         @param tid The committing transaction.
     */
@@ -178,121 +366,371 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        out.writeInt(COMMIT_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
+        postAppend();
         tidToFirstLogRecord.remove(tid.getId());
+        awaitForce(currentOffset);
+    }
+
+    /** Wait until the flusher thread has forced the log up to lsn.  The
+        caller must hold our monitor, which is released while waiting.
+    */
+    private void awaitForce(long lsn) throws IOException {
+        if (lsn > forceRequested) {
+            forceRequested = lsn;
+            notifyAll();
+        }
+        if (flusher == null) {
+            flusher = new Thread(this::runFlusher, "log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        while (forcedOffset < lsn) {
+            if (flusherFailure != null)
+                throw new IOException("could not force the log", flusherFailure);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the log");
+            }
+        }
+    }
+
+    /** Body of the group commit flusher thread: each round writes out the
+        log buffer and forces the file once for all commits waiting at
+        that point.
+    */
+    private void runFlusher() {
+        while (true) {
+            long target;
+            long tail;
+            List<FileChannel> channels = new ArrayList<FileChannel>();
+            synchronized (this) {
+                long idleSince = System.currentTimeMillis();
+                while (forceRequested <= forcedOffset) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (idle >= FLUSHER_IDLE_MS) {
+                        flusher = null;
+                        return;
+                    }
+                    try {
+                        wait(FLUSHER_IDLE_MS - idle);
+                    } catch (InterruptedException e) {
+                        flusher = null;
+                        return;
+                    }
+                }
+            }
+            long delay = groupCommitDelayMicros;
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    // force what we have
+                }
+            }
+            synchronized (this) {
+                try {
+                    writeBuffer();
+                } catch (IOException e) {
+                    flusherFailure = e;
+                    notifyAll();
+                    continue;
+                }
+                target = currentOffset;
+                tail = fileEnd / segmentSize;
+                for (RandomAccessFile seg : openSegments.values())
+                    channels.add(seg.getChannel());
+            }
+            IOException failure = null;
+            try {
+                for (FileChannel channel : channels)
+                    channel.force(true);
+            } catch (ClosedChannelException e) {
+                // force() forced everything we were after before closing it
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    flusherFailure = failure;
+                } else {
+                    forceCount++;
+                    if (target > forcedOffset)
+                        forcedOffset = target;
+                    try {
+                        releaseSegments(tail);
+                    } catch (IOException e) {
+                        flusherFailure = e;
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /** Return the LSN the next record will get */
+    synchronized long logEnd() {
+        return Math.max(currentOffset, LONG_SIZE);
+    }
+
+    /** Return true if the transaction has log records but has not
+        committed or aborted yet.
+    */
+    synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** Set whether updates are logged as deltas (the default) or always
+        as full before and after images.
+    */
+    public void setDeltaLogging(boolean enabled) {
+        deltaLogging = enabled;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
+        Unless delta logging is off, or the page changed so much that
+        the delta would be larger, the record is written as a
+        DELTA_UPDATE record holding only the bytes that changed.
+        The record is not forced; callers about to write the page must
+        call {@link #force(long)} with the returned LSN first.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, i.e. the position in the log just
+        past it
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        // build the body of the record before taking the monitor
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        int type;
+        // a page that starts out empty may have been (re)initialized on disk
+        // without a log record, so replaying it must not depend on what
+        // the log says about earlier versions of it
+        PageDelta delta = deltaLogging && !isEmptyPage(beforeData)
+            ? PageDelta.diff(beforeData, afterData) : null;
+        if (delta != null && delta.serializedSize() < 2 * (INT_SIZE + afterData.length)) {
+            /* delta update record consists of
+
+               record type
+               transaction id
+               page header (see writePageHeader)
+               changed ranges (see PageDelta.write)
+               start offset
+            */
+            type = DELTA_UPDATE_RECORD;
+            writePageHeader(bodyOut, after);
+            delta.write(bodyOut);
+        } else {
+            /* update record conists of
+
+               record type
+               transaction id
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            type = UPDATE_RECORD;
+            writePageData(bodyOut, before, beforeData);
+            writePageData(bodyOut, after, afterData);
+        }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        synchronized (this) {
+            Debug.log("WRITE, offset = " + currentOffset);
+            preAppend();
+            // transactions that did not log a BEGIN record (BufferPool used
+            // directly) start with their first update
+            if (!tidToFirstLogRecord.containsKey(tid.getId()))
+                tidToFirstLogRecord.put(tid.getId(), currentOffset);
+            out.writeInt(type);
+            out.writeLong(tid.getId());
+            body.writeTo(out);
+            out.writeLong(currentOffset);
+            postAppend();
+
+            Debug.log("WRITE OFFSET = " + currentOffset);
+            return currentOffset;
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    private static boolean isEmptyPage(byte[] data) {
+        for (byte b : data) {
+            if (b != 0)
+                return false;
+        }
+        return true;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        writePageData(raf, p, p.getPageData());
+    }
 
+    private void writePageData(DataOutput raf, Page p, byte[] pageData) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page header (see writePageHeader)
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageHeader(raf, p);
+        raf.writeInt(pageData.length);
+        raf.write(pageData);
+        //        Debug.log ("WROTE PAGE DATA, TAG = " + PageCodecs.tagOf(p) + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
+    /** Write the page header: the byte tag of the page's codec (see
+        PageCodecs), the number of ints its id serializes to, and the
+        ints */
+    private void writePageHeader(DataOutput raf, Page p) throws IOException {
+        int pageInfo[] = p.getId().serialize();
+        raf.writeByte(PageCodecs.tagOf(p));
         raf.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read the page id that follows the tag of a page header */
+    private PageId readPageId(DataInput raf, PageCodec codec) throws IOException {
+        int numIdArgs = raf.readInt();
+        int idArgs[] = new int[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = raf.readInt();
+        }
+        return codec.readId(idArgs);
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    Page readPageData(DataInput raf) throws IOException {
+        PageCodec codec = PageCodecs.get(raf.readByte());
+        PageId pid = readPageId(raf, codec);
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        return codec.readPage(pid, pageData);
+    }
+
+    /** Reads the log from some LSN on, moving from one segment file to
+        the next as it goes.  It only sees what has been written out of the
+        log buffer.
+    */
+    private class LogReader extends InputStream {
+        private final byte[] buf = new byte[LOG_BUFFER_SIZE];
+        private long bufStart; // LSN of buf[0]
+        private int bufPos;
+        private int bufLen;
+        private long segment = -1;
+        private RandomAccessFile seg;
+
+        LogReader(long lsn) {
+            bufStart = lsn;
+        }
+
+        /** @return the LSN of the next byte to be read */
+        long position() {
+            return bufStart + bufPos;
+        }
+
+        // read the next piece of the log into buf; false at its end
+        private boolean fill() throws IOException {
+            bufStart += bufLen;
+            bufPos = 0;
+            bufLen = 0;
+            long n = bufStart / segmentSize;
+            if (n != segment) {
+                close();
+                segment = n;
+                File f = segmentFile(n);
+                if (!f.exists())
+                    return false;
+                seg = new RandomAccessFile(f, "r");
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            if (seg == null)
+                return false;
+            int offset = (int) (bufStart % segmentSize);
+            seg.seek(offset);
+            int read = seg.read(buf, 0, Math.min(buf.length, segmentSize - offset));
+            if (read <= 0)
+                return false;
+            bufLen = read;
+            return true;
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        public int read() throws IOException {
+            if (bufPos == bufLen && !fill())
+                return -1;
+            return buf[bufPos++] & 0xff;
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (bufPos == bufLen && !fill())
+                return -1;
+            int n = Math.min(len, bufLen - bufPos);
+            System.arraycopy(buf, bufPos, b, off, n);
+            bufPos += n;
+            return n;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        public void close() throws IOException {
+            if (seg != null)
+                seg.close();
+            seg = null;
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Open the log for reading at the given LSN.  Records still in the
+        log buffer are not seen, so callers that need them must write the
+        buffer out (or force the log) first.
+    */
+    DataInputStream readLog(long lsn) {
+        return new DataInputStream(new LogReader(lsn));
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** The page and the change recorded by an UPDATE or DELTA_UPDATE
+        record. */
+    private static class PageUpdate {
+        final int tag;
+        final PageId pid;
+        final PageDelta delta;
+
+        PageUpdate(int tag, PageId pid, PageDelta delta) {
+            this.tag = tag;
+            this.pid = pid;
+            this.delta = delta;
         }
-        return newPage;
+    }
 
+    /** Read the body of an UPDATE or DELTA_UPDATE record; full images are
+        turned into a delta covering the whole page. */
+    private PageUpdate readPageUpdate(DataInput raf, int type) throws IOException {
+        if (type == DELTA_UPDATE_RECORD) {
+            int tag = raf.readByte();
+            PageId pid = readPageId(raf, PageCodecs.get(tag));
+            return new PageUpdate(tag, pid, PageDelta.read(raf));
+        }
+        byte[][] images = new byte[2][];
+        int tag = 0;
+        PageId pid = null;
+        for (int i = 0; i < 2; i++) {
+            tag = raf.readByte();
+            pid = readPageId(raf, PageCodecs.get(tag));
+            images[i] = new byte[raf.readInt()];
+            raf.readFully(images[i]);
+        }
+        return new PageUpdate(tag, pid, PageDelta.fullImages(images[0], images[1]));
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +745,156 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        postAppend();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+    /** The body of a CHECKPOINT record. */
+    private static class Checkpoint {
+        // first log record of every active transaction, by tid
+        final LinkedHashMap<Long, Long> active = new LinkedHashMap<Long, Long>();
+        // offset of the log when the dirty page table was taken
+        long dirtyTableOffset;
+        // serialized ids of the dirty pages, and their recLSNs
+        final ArrayList<int[]> dirtyPages = new ArrayList<int[]>();
+        final ArrayList<Long> recLsns = new ArrayList<Long>();
+
+        /** @return the offset redo and undo have to start reading at */
+        long firstNeeded() {
+            long first = dirtyTableOffset;
+            for (long offset : active.values())
+                first = Math.min(first, offset);
+            for (long offset : recLsns)
+                first = Math.min(first, offset);
+            return first;
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        void write(DataOutput out) throws IOException {
+            out.writeInt(active.size());
+            for (Map.Entry<Long, Long> e : active.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeLong(dirtyTableOffset);
+            out.writeInt(dirtyPages.size());
+            for (int i = 0; i < dirtyPages.size(); i++) {
+                int[] id = dirtyPages.get(i);
+                out.writeInt(id.length);
+                for (int v : id)
+                    out.writeInt(v);
+                out.writeLong(recLsns.get(i));
             }
         }
 
-        logTruncate();
-    }
-
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        static Checkpoint read(DataInput in) throws IOException {
+            Checkpoint cp = new Checkpoint();
+            int numXactions = in.readInt();
+            for (int i = 0; i < numXactions; i++) {
+                long tid = in.readLong();
+                cp.active.put(tid, in.readLong());
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            cp.dirtyTableOffset = in.readLong();
+            int numDirty = in.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                int[] id = new int[in.readInt()];
+                for (int j = 0; j < id.length; j++)
+                    id[j] = in.readInt();
+                cp.dirtyPages.add(id);
+                cp.recLsns.add(in.readLong());
             }
+            return cp;
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        Checkpoints are fuzzy: nothing is flushed while the checkpoint is
+        taken, and transactions keep running.  The record holds the active
+        transactions and the dirty page table of the BufferPool, which
+        together tell recovery how far back in the log it has to start.
+        Once the record is on disk, the pages in the dirty page table are
+        handed to a background writer, so the next checkpoint can let go of
+        more of the log.
+    */
+    public void logCheckpoint() throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        Checkpoint cp = new Checkpoint();
+        synchronized (this) {
+            preAppend();
+            cp.dirtyTableOffset = currentOffset;
+        }
+        // see the locking note above: the dirty page table is read outside
+        // our monitor.  A page that is not in it either was clean when it
+        // was looked at, or gets its records after dirtyTableOffset.
+        Map<PageId, Long> dirty = bp.dirtyPages();
+        synchronized (this) {
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                cp.dirtyPages.add(e.getKey().serialize());
+                cp.recLsns.add(Math.max(e.getValue(), firstLsn));
+            }
+            cp.active.putAll(tidToFirstLogRecord);
+
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+            cp.write(out);
+            out.writeLong(startCpOffset);
+            postAppend();
+            force();
+
+            //once the CP is written, make sure the CP location in the
+            // manifest is updated
+            checkpointLsn = startCpOffset;
+            writeManifest();
+            //Debug.log("CP OFFSET = " + currentOffset);
+        }
+        bp.writeBackInBackground(dirty.keySet());
 
-        raf.seek(minLogRecord);
+        logTruncate();
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption: the segments that end before the last checkpoint, the
+        first record of any transaction active then, and the recLSN of any
+        page that was dirty then.  The manifest is updated first; the
+        segment files are deleted afterwards, while records keep being
+        appended and forced.
+    */
+    public void logTruncate() throws IOException {
+        long firstSegment;
+        long lastSegment;
+        synchronized (this) {
+            preAppend();
+            if (checkpointLsn == NO_CHECKPOINT_ID)
+                return;
+            writeBuffer();
+            DataInputStream in = readLog(checkpointLsn);
+            long needed;
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                if (in.readInt() != CHECKPOINT_RECORD)
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                in.readLong();
+                needed = Math.min(checkpointLsn, Checkpoint.read(in).firstNeeded());
+            } finally {
+                in.close();
             }
+            if (needed <= firstLsn)
+                return;
+            firstSegment = firstLsn / segmentSize;
+            lastSegment = needed / segmentSize;
+            firstLsn = needed;
+            writeManifest();
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; DROPPING SEGMENTS " + firstSegment + " TO " + (lastSegment - 1));
+        for (long n = firstSegment; n < lastSegment; n++)
+            segmentFile(n).delete();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -464,38 +908,340 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            // after this no other thread logs an update of tid, so the
+            // records read below are all there will be
+            Database.getBufferPool().discardWriteSet(tid);
+            Map<PageId, List<PageDelta>> updates;
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                updates = readUpdates(tid);
+            }
+            // see the locking note above: pages are only touched
+            // outside our monitor
+            BufferPool bp = Database.getBufferPool();
+            for (Map.Entry<PageId, List<PageDelta>> e : updates.entrySet()) {
+                PageId pid = e.getKey();
+                // once discarded, the page on disk is the last image of it
+                // that was written, and no one else can load it since we
+                // still hold its lock
+                bp.discardPage(pid);
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                Page current = file.readPage(pid);
+                byte[] data = current.getPageData();
+                List<PageDelta> deltas = e.getValue();
+                for (int i = deltas.size() - 1; i >= 0; i--)
+                    deltas.get(i).undo(data);
+                file.writePage(PageCodecs.get(current).readPage(pid, data));
+            }
+        }
+    }
+
+    /** Scan the log records of a live transaction and return, for every
+        page it wrote, the changes it logged for that page in log order.
+    */
+    private Map<PageId, List<PageDelta>> readUpdates(TransactionId tid) throws IOException {
+        Map<PageId, List<PageDelta>> updates = new LinkedHashMap<PageId, List<PageDelta>>();
+        Long first = tidToFirstLogRecord.get(tid.getId());
+        if (first == null)
+            return updates;
+        writeBuffer();
+        LogReader reader = new LogReader(first);
+        DataInputStream in = new DataInputStream(reader);
+        try {
+            while (reader.position() < currentOffset) {
+                int type = in.readInt();
+                long record_tid = in.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                case DELTA_UPDATE_RECORD:
+                    PageUpdate update = readPageUpdate(in, type);
+                    if (record_tid == tid.getId()) {
+                        List<PageDelta> deltas = updates.get(update.pid);
+                        if (deltas == null) {
+                            deltas = new ArrayList<PageDelta>();
+                            updates.put(update.pid, deltas);
+                        }
+                        deltas.add(update.delta);
+                    }
+                    break;
+                case CHECKPOINT_RECORD:
+                    Checkpoint.read(in);
+                    break;
+                }
+                in.readLong();
             }
+        } finally {
+            in.close();
         }
+        return updates;
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                for (RandomAccessFile seg : openSegments.values())
+                    seg.close();
+                openSegments.clear();
+                manifest.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** Set the number of threads recover() replays pages with; the
+        default is one per processor.
+    */
+    public void setRecoveryThreads(int threads) {
+        recoveryThreads = Math.max(1, threads);
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery runs in three phases:
+        <ul>
+        <li> Analysis reads the log once, starting at the last checkpoint,
+        at the first record of a transaction that was active then, or at
+        the recLSN of a page that was dirty then, whichever comes first.  It sorts the updates it finds by page,
+        and notes which transactions committed, aborted, or neither.
+        <li> Redo replays the history of every page: each update is
+        applied, and when a transaction's ABORT record comes along its
+        updates are undone again, as its rollback did.  The records of a
+        page form a chain (see BufferPool) so replaying them over any
+        version of the page on disk gives its latest version.  Pages are
+        independent, so they are partitioned by page id across a pool of
+        worker threads and replayed concurrently.
+        <li> Undo takes back the updates of transactions that neither
+        committed nor aborted, as part of the same per-page replay, and
+        then writes an ABORT record for each of them.
+        </ul>
+        A record cut short by the crash ends the log; it is cut off.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            Map<PageId, PageReplay> pages = new HashMap<PageId, PageReplay>();
+            Set<Long> losers;
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                logBuffer.reset();
+                losers = analyze(pages);
             }
-         }
+            // see the locking note above: pages are only touched
+            // outside our monitor
+            for (PageId pid : pages.keySet())
+                Database.getBufferPool().discardPage(pid);
+            replay(pages);
+            synchronized (this) {
+                for (Long tid : losers) {
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    postAppend();
+                }
+                tidToFirstLogRecord.clear();
+                force();
+            }
+        }
+    }
+
+    /** The updates to replay on one page, in order.  Each is either
+        redone or undone.
+    */
+    private static class PageReplay {
+        final int tag;
+        final ArrayList<PageDelta> deltas = new ArrayList<PageDelta>();
+        final BitSet undo = new BitSet();
+
+        PageReplay(int tag) {
+            this.tag = tag;
+        }
+
+        void add(PageDelta delta, boolean isUndo) {
+            if (isUndo)
+                undo.set(deltas.size());
+            deltas.add(delta);
+        }
+    }
+
+    /** Analysis pass of recover(): fill pages with the updates to replay
+        and return the transactions that have to be rolled back.
+    */
+    private Set<Long> analyze(Map<PageId, PageReplay> pages) throws IOException {
+        if (manifest.length() < MANIFEST_SIZE)
+            writeManifest();
+        long start = firstLsn;
+        if (checkpointLsn != NO_CHECKPOINT_ID) {
+            DataInputStream in = readLog(checkpointLsn + INT_SIZE + LONG_SIZE);
+            try {
+                long needed = Math.min(checkpointLsn, Checkpoint.read(in).firstNeeded());
+                start = Math.max(start, needed);
+            } finally {
+                in.close();
+            }
+        }
+
+        // updates of transactions that have not finished yet, by tid
+        Map<Long, List<PageUpdate>> live = new LinkedHashMap<Long, List<PageUpdate>>();
+        long end = start;
+        LogReader reader = new LogReader(start);
+        DataInputStream in = new DataInputStream(reader);
+        try {
+            while (true) {
+                int type = in.readInt();
+                long record_tid = in.readLong();
+                switch (type) {
+                case BEGIN_RECORD:
+                    if (!live.containsKey(record_tid))
+                        live.put(record_tid, new ArrayList<PageUpdate>());
+                    break;
+                case UPDATE_RECORD:
+                case DELTA_UPDATE_RECORD:
+                    PageUpdate update = readPageUpdate(in, type);
+                    List<PageUpdate> updates = live.get(record_tid);
+                    if (updates == null) {
+                        updates = new ArrayList<PageUpdate>();
+                        live.put(record_tid, updates);
+                    }
+                    updates.add(update);
+                    replayFor(pages, update).add(update.delta, false);
+                    break;
+                case COMMIT_RECORD:
+                    live.remove(record_tid);
+                    break;
+                case ABORT_RECORD:
+                    undoUpdates(pages, live.remove(record_tid));
+                    break;
+                case CHECKPOINT_RECORD:
+                    Checkpoint.read(in);
+                    break;
+                default:
+                    throw new EOFException("bad record type " + type);
+                }
+                if (in.readLong() != end)
+                    throw new EOFException("bad record at " + end);
+                end = reader.position();
+            }
+        } catch (EOFException e) {
+            // the tail of the log did not make it to disk
+        } finally {
+            in.close();
+        }
+        cutLog(end);
+
+        for (List<PageUpdate> updates : live.values())
+            undoUpdates(pages, updates);
+
+        fileEnd = end;
+        currentOffset = end;
+        return live.keySet();
+    }
+
+    // delete what follows the given LSN, and any segment a truncation
+    // left behind
+    private void cutLog(long end) throws IOException {
+        long last = end / segmentSize;
+        for (long n : segmentsOnDisk()) {
+            if (n > last || n < firstLsn / segmentSize)
+                segmentFile(n).delete();
+        }
+        File tail = segmentFile(last);
+        if (tail.exists() && tail.length() > end % segmentSize) {
+            RandomAccessFile f = new RandomAccessFile(tail, "rw");
+            try {
+                f.setLength(end % segmentSize);
+            } finally {
+                f.close();
+            }
+        }
+    }
+
+    private static PageReplay replayFor(Map<PageId, PageReplay> pages, PageUpdate update) {
+        PageReplay replay = pages.get(update.pid);
+        if (replay == null) {
+            replay = new PageReplay(update.tag);
+            pages.put(update.pid, replay);
+        }
+        return replay;
+    }
+
+    private static void undoUpdates(Map<PageId, PageReplay> pages, List<PageUpdate> updates) {
+        if (updates == null)
+            return;
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            PageUpdate update = updates.get(i);
+            replayFor(pages, update).add(update.delta, true);
+        }
+    }
+
+    /** Redo and undo pass of recover(): replay the updates of every page
+        and write the result, with the pages partitioned across
+        recoveryThreads workers.
+    */
+    private void replay(Map<PageId, PageReplay> pages) throws IOException {
+        int threads = Math.max(1, Math.min(recoveryThreads, pages.size()));
+        final List<List<Map.Entry<PageId, PageReplay>>> partitions =
+            new ArrayList<List<Map.Entry<PageId, PageReplay>>>();
+        for (int i = 0; i < threads; i++)
+            partitions.add(new ArrayList<Map.Entry<PageId, PageReplay>>());
+        for (Map.Entry<PageId, PageReplay> e : pages.entrySet())
+            partitions.get((e.getKey().hashCode() & Integer.MAX_VALUE) % threads).add(e);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (final List<Map.Entry<PageId, PageReplay>> partition : partitions) {
+                done.add(workers.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (Map.Entry<PageId, PageReplay> e : partition)
+                            replayPage(e.getKey(), e.getValue());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during recovery");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("recovery failed", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void replayPage(PageId pid, PageReplay replay) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data;
+        PageDelta first = replay.deltas.get(0);
+        if (first.coversPage() && !replay.undo.get(0)) {
+            data = new byte[first.pageSize()];
+        } else {
+            try {
+                data = file.readPage(pid).getPageData();
+            } catch (IllegalArgumentException e) {
+                // the page was never written before the crash
+                data = new byte[first.pageSize()];
+            }
+        }
+        for (int i = 0; i < replay.deltas.size(); i++) {
+            if (replay.undo.get(i))
+                replay.deltas.get(i).undo(data);
+            else
+                replay.deltas.get(i).redo(data);
+        }
+        file.writePage(PageCodecs.get(replay.tag).readPage(pid, data));
     }
 
     /** Print out a human readable represenation of the log */
@@ -504,7 +1250,21 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        for (RandomAccessFile seg : openSegments.values())
+            seg.getChannel().force(true);
+        releaseSegments(fileEnd / segmentSize);
+        forceCount++;
+        forcedOffset = currentOffset;
+        notifyAll();
+    }
+
+    /** Force the log to disk unless everything up to the given LSN
+        (as returned by {@link #logWrite}) is there already.
+    */
+    public synchronized void force(long lsn) throws IOException {
+        if (lsn > forcedOffset)
+            force();
     }
 
 }
@@ -2,7 +2,9 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -306,6 +308,14 @@ public class LogicalPlan {
 
         }
 
+        // read B+ tree tables through their index where that is cheaper;
+        // the index scan applies the filters it was built from itself
+        Set<LogicalFilterNode> indexFilters = new HashSet<LogicalFilterNode>();
+        for (LogicalScanNode table : tables) {
+            String baseTableName = Database.getCatalog().getTableName(table.t);
+            indexFilters.addAll(chooseAccessPath(t, table, statsMap.get(baseTableName)));
+        }
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -314,19 +324,8 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
             TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (java.util.NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            Field f = filterConstant(lf, td);
 
             Predicate p = null;
             try {
@@ -334,7 +333,8 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -481,6 +481,113 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * @return the constant of a filter, as a Field of the type of the field
+     *   it is compared with
+     * @throws ParsingException if td has no such field
+     */
+    private static Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp;
+        try {
+            ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+        } catch (java.util.NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /**
+     * Choose how to read a table. If it is a BTreeFile and some of its
+     * filters compare its key field with a constant (=, &lt;, &lt;=, &gt;,
+     * &gt;=), the most selective equality, or else the tightest lower and
+     * upper bounds, give an IndexPredicate; the table is then read with a
+     * BTreeScan on that predicate if the stats estimate it to be cheaper
+     * than a sequential scan.
+     *
+     * @param t the transaction the scan runs as a part of
+     * @param table the table to read
+     * @param s the stats of the table, or null if there are none
+     * @return the filters the index scan applies, which need no Filter of
+     *   their own; empty if the table is read sequentially
+     * @throws ParsingException if a filter on the table is on an unknown field
+     */
+    private Set<LogicalFilterNode> chooseAccessPath(TransactionId t, LogicalScanNode table, TableStats s)
+            throws ParsingException {
+        Set<LogicalFilterNode> used = new HashSet<LogicalFilterNode>();
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(file instanceof BTreeFile) || s == null)
+            return used;
+        int keyField = ((BTreeFile) file).keyField();
+        TupleDesc td = subplanMap.get(table.alias).getTupleDesc();
+
+        // the chosen equality, lower and upper bound, their constants and
+        // their selectivities
+        LogicalFilterNode[] best = new LogicalFilterNode[3];
+        Field[] constants = new Field[3];
+        double[] sels = new double[3];
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            Field f = filterConstant(lf, td);
+            if (td.fieldNameToIndex(lf.fieldQuantifiedName) != keyField)
+                continue;
+            int kind;
+            switch (lf.p) {
+            case EQUALS:
+                kind = 0;
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                kind = 1;
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                kind = 2;
+                break;
+            default:
+                continue;
+            }
+            double sel = s.estimateSelectivity(keyField, lf.p, f);
+            if (best[kind] == null || sel < sels[kind]) {
+                best[kind] = lf;
+                constants[kind] = f;
+                sels[kind] = sel;
+            }
+        }
+
+        IndexPredicate ipred;
+        double sel;
+        if (best[0] != null) {
+            ipred = new IndexPredicate(Predicate.Op.EQUALS, constants[0]);
+            sel = sels[0];
+            used.add(best[0]);
+        } else if (best[1] != null && best[2] != null) {
+            ipred = new IndexPredicate(best[1].p, constants[1], best[2].p, constants[2]);
+            // both bounds are on the same field, so the tuples outside the
+            // range are those below the lower and those above the upper bound
+            sel = Math.max(0.0, sels[1] + sels[2] - 1.0);
+            used.add(best[1]);
+            used.add(best[2]);
+        } else if (best[1] != null || best[2] != null) {
+            int kind = (best[1] != null ? 1 : 2);
+            ipred = new IndexPredicate(best[kind].p, constants[kind]);
+            sel = sels[kind];
+            used.add(best[kind]);
+        } else {
+            return used;
+        }
+
+        if (s.estimateIndexScanCost(sel) >= s.estimateScanCost()) {
+            used.clear();
+            return used;
+        }
+        subplanMap.put(table.alias, new BTreeScan(t, file.getId(), table.alias, ipred));
+        return used;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
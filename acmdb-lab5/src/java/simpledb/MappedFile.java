@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * MappedFile maps the file behind a {@link FileHandle} into memory and hands
+ * out read-only views of single pages, so that reading a page neither issues
+ * a system call nor copies the page into a freshly allocated array. Page
+ * faults on the mapping are served from the OS page cache, which also does
+ * the read-ahead for sequential scans.
+ * <p>
+ * A single MappedByteBuffer cannot exceed 2GB, so the file is mapped in
+ * chunks of a whole number of pages; no page ever straddles two chunks.
+ * Chunks are mapped on first use. The last chunk is mapped up to the end of
+ * the file as it was at that moment and is mapped again once the file has
+ * grown past it.
+ * <p>
+ * Writes still go through the FileHandle. On the platforms we run on a
+ * shared mapping sees them immediately, since both go through the same page
+ * cache.
+ *
+ * @Threadsafe
+ */
+class MappedFile {
+
+    private final FileHandle _handle;
+    private final int _pageSize;
+    private final int _pagesPerChunk;
+    private final ArrayList<MappedByteBuffer> _chunks = new ArrayList<>();
+
+    /**
+     * @param handle the file to map
+     * @param pageSize the size of a page; must not change while mapped
+     */
+    MappedFile(FileHandle handle, int pageSize) {
+        this(handle, pageSize, Integer.MAX_VALUE / pageSize);
+    }
+
+    /**
+     * @param pagesPerChunk the number of pages in each mapped chunk
+     */
+    MappedFile(FileHandle handle, int pageSize, int pagesPerChunk) {
+        _handle = handle;
+        _pageSize = pageSize;
+        _pagesPerChunk = pagesPerChunk;
+    }
+
+    public int getPageSize() {
+        return _pageSize;
+    }
+
+    /**
+     * Return a read-only view of a page, positioned at the start of the page
+     * and limited to its end. The view reflects later writes to the page.
+     *
+     * @return the view, or null if the page lies (partly) past the end of file
+     */
+    public ByteBuffer page(int pageNo) throws IOException {
+        int chunkNo = pageNo / _pagesPerChunk;
+        int offset = (pageNo % _pagesPerChunk) * _pageSize;
+        MappedByteBuffer chunk = chunk(chunkNo, offset + _pageSize);
+        if (chunk == null) return null;
+        ByteBuffer view = chunk.duplicate();
+        view.position(offset);
+        view.limit(offset + _pageSize);
+        return view.slice();
+    }
+
+    /**
+     * @return chunk chunkNo, mapped to at least minLength bytes, or null if
+     *   the file is not long enough
+     */
+    private synchronized MappedByteBuffer chunk(int chunkNo, int minLength) throws IOException {
+        while (_chunks.size() <= chunkNo) _chunks.add(null);
+        MappedByteBuffer chunk = _chunks.get(chunkNo);
+        if (chunk != null && chunk.capacity() >= minLength) return chunk;
+
+        long chunkBytes = (long) _pagesPerChunk * _pageSize;
+        long start = chunkNo * chunkBytes;
+        long length = Math.min(chunkBytes, _handle.size() - start);
+        if (length < minLength) return null;
+        chunk = _handle.map(FileChannel.MapMode.READ_ONLY, start, length);
+        _chunks.set(chunkNo, chunk);
+        return chunk;
+    }
+}
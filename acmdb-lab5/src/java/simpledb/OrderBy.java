@@ -56,9 +56,13 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
+        // load all the tuples in a collection, and sort it. The tuples are
+        // decoded first so that they do not pin the pages they came from.
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            t.materialize();
+            childTups.add(t);
+        }
         Collections.sort(childTups, new TupleComparator(orderByField, asc));
         it = childTups.iterator();
         super.open();
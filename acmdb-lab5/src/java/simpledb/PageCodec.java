@@ -0,0 +1,26 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * A PageCodec rebuilds pages of one Page implementation, and their ids, from
+ * the data LogFile records for them: the ints returned by
+ * {@link PageId#serialize} and the bytes returned by {@link Page#getPageData}.
+ * <p>
+ * Codecs are registered with {@link PageCodecs} under a small integer tag,
+ * which is what the log stores instead of class names.
+ *
+ * @see PageCodecs#register
+ */
+public interface PageCodec {
+
+    /**
+     * Rebuild a page id from the ints it serialized to.
+     */
+    PageId readId(int[] data);
+
+    /**
+     * Rebuild a page from its id and its page data.
+     */
+    Page readPage(PageId pid, byte[] data) throws IOException;
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageCodecs is the registry of {@link PageCodec}s LogFile uses to write and
+ * read page images. Each Page implementation has a tag between 1 and
+ * {@link #MAX_TAG}, which the log stores in a single byte in place of the
+ * page and id class names, and reading a page back is a table lookup plus a
+ * constructor call rather than reflection.
+ * <p>
+ * The pages of HeapFile and BTreeFile are registered here. A new DbFile type
+ * registers its page classes once, before any of its pages are logged; a tag
+ * must keep its meaning for as long as logs written with it may be read.
+ *
+ * @Threadsafe
+ */
+public final class PageCodecs {
+
+    /** Largest tag a codec can be registered under */
+    public static final int MAX_TAG = 127;
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_LEAF_PAGE = 2;
+    public static final int BTREE_INTERNAL_PAGE = 3;
+    public static final int BTREE_HEADER_PAGE = 4;
+    public static final int BTREE_ROOT_PTR_PAGE = 5;
+
+    private static final AtomicReferenceArray<PageCodec> _codecs = new AtomicReferenceArray<>(MAX_TAG + 1);
+    private static final ConcurrentHashMap<Class<?>, Integer> _tags = new ConcurrentHashMap<>();
+
+    private PageCodecs() {
+    }
+
+    private static final PageCodec HEAP = new PageCodec() {
+        public PageId readId(int[] data) {
+            return new HeapPageId(data[0], data[1]);
+        }
+
+        public Page readPage(PageId pid, byte[] data) throws IOException {
+            return new HeapPage((HeapPageId) pid, data);
+        }
+    };
+
+    /** Codec for the B+ tree pages that also need the key fields of their file */
+    private abstract static class BTreeCodec implements PageCodec {
+        public PageId readId(int[] data) {
+            return new BTreePageId(data[0], data[1], data[2]);
+        }
+
+        static int[] keyFields(PageId pid) {
+            return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyFields();
+        }
+    }
+
+    static {
+        register(HEAP_PAGE, HeapPage.class, HEAP);
+        register(BTREE_LEAF_PAGE, BTreeLeafPage.class, new BTreeCodec() {
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeLeafPage((BTreePageId) pid, data, keyFields(pid));
+            }
+        });
+        register(BTREE_INTERNAL_PAGE, BTreeInternalPage.class, new BTreeCodec() {
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeInternalPage((BTreePageId) pid, data, keyFields(pid));
+            }
+        });
+        register(BTREE_HEADER_PAGE, BTreeHeaderPage.class, new BTreeCodec() {
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeHeaderPage((BTreePageId) pid, data);
+            }
+        });
+        register(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class, new BTreeCodec() {
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeRootPtrPage((BTreePageId) pid, data);
+            }
+        });
+    }
+
+    /**
+     * Register the codec for a Page implementation under the given tag.
+     *
+     * @throws IllegalArgumentException if the tag is out of range or taken
+     *   by another class
+     */
+    public static synchronized void register(int tag, Class<? extends Page> pageClass, PageCodec codec) {
+        if (tag < 1 || tag > MAX_TAG)
+            throw new IllegalArgumentException("page codec tag " + tag + " out of range");
+        Integer old = _tags.get(pageClass);
+        if (_codecs.get(tag) != null && (old == null || old != tag))
+            throw new IllegalArgumentException("page codec tag " + tag + " is already registered");
+        if (old != null && old != tag)
+            _codecs.set(old, null);
+        _codecs.set(tag, codec);
+        _tags.put(pageClass, tag);
+    }
+
+    /**
+     * @return the tag of the codec registered for the class of the page
+     * @throws IllegalArgumentException if there is none
+     */
+    public static int tagOf(Page page) {
+        Integer tag = _tags.get(page.getClass());
+        if (tag == null)
+            throw new IllegalArgumentException("no page codec registered for " + page.getClass().getName());
+        return tag;
+    }
+
+    /**
+     * @return the codec registered under the tag
+     * @throws IllegalArgumentException if there is none
+     */
+    public static PageCodec get(int tag) {
+        PageCodec codec = tag >= 1 && tag <= MAX_TAG ? _codecs.get(tag) : null;
+        if (codec == null)
+            throw new IllegalArgumentException("no page codec registered under tag " + tag);
+        return codec;
+    }
+
+    /**
+     * @return the codec registered for the class of the page
+     */
+    public static PageCodec get(Page page) {
+        return get(tagOf(page));
+    }
+}
@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the difference between two images of a page, kept as the
+ * byte ranges that changed together with their old and new contents. It is
+ * what LogFile writes for an update instead of two full page images.
+ * <p>
+ * For a HeapPage or a BTreeLeafPage a tuple insert or delete changes one
+ * byte of the header and the bytes of one slot, so the delta is a few dozen
+ * bytes rather than two whole pages. Ranges that are only a few bytes apart
+ * are merged, since every range costs eight bytes of bookkeeping.
+ * <p>
+ * A delta is applied by overwriting its ranges, so applying it twice has the
+ * same effect as applying it once. Undoing a sequence of deltas in reverse
+ * order, starting from any image the last of them could have been applied
+ * to, gives back the image the first of them was taken against.
+ */
+final class PageDelta {
+
+    /** Unchanged runs shorter than this do not split a range */
+    static final int MERGE_GAP = 8;
+
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta that turns oldData into newData. Both images must
+     * have the same length.
+     */
+    static PageDelta diff(byte[] oldData, byte[] newData) {
+        if (oldData.length != newData.length)
+            throw new IllegalArgumentException("page images differ in size");
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        int n = oldData.length;
+        while (i < n) {
+            if (oldData[i] == newData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            int same = 0;
+            for (i = end; i < n && same < MERGE_GAP; i++) {
+                if (oldData[i] == newData[i]) {
+                    same++;
+                } else {
+                    same = 0;
+                    end = i + 1;
+                }
+            }
+            i = end;
+            ranges.add(new int[] { start, end });
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(oldData, start, end);
+            after[r] = Arrays.copyOfRange(newData, start, end);
+        }
+        return new PageDelta(n, offsets, before, after);
+    }
+
+    /**
+     * The delta between two full images, as a single range covering the
+     * whole page.
+     */
+    static PageDelta fullImages(byte[] oldData, byte[] newData) {
+        return new PageDelta(oldData.length, new int[] { 0 },
+                new byte[][] { oldData }, new byte[][] { newData });
+    }
+
+    /** @return the size of the page the delta applies to */
+    int pageSize() {
+        return pageSize;
+    }
+
+    /** @return true if the delta overwrites the whole page */
+    boolean coversPage() {
+        return offsets.length == 1 && offsets[0] == 0 && after[0].length == pageSize;
+    }
+
+    /** @return the number of changed ranges */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes {@link #write} produces */
+    int serializedSize() {
+        int size = 2 * 4;
+        for (byte[] b : before) size += 2 * 4 + 2 * b.length;
+        return size;
+    }
+
+    /** Overwrite the changed ranges of data with their new contents */
+    void redo(byte[] data) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+    }
+
+    /** Overwrite the changed ranges of data with their old contents */
+    void undo(byte[] data) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(before[r], 0, data, offsets[r], before[r].length);
+    }
+
+    /**
+     * Write the delta as the page size, the number of ranges, and for each
+     * range its offset, its length, the old bytes and the new bytes.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(before[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Read a delta written by {@link #write} */
+    static PageDelta read(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageSize, offsets, before, after);
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * PageReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame. The BufferPool reports every admission, hit,
+ * eviction and discard to the policy, and asks it for a victim when the pool
+ * is full.
+ * <p>
+ * The policy only tracks page ids; it never touches the pages themselves.
+ * Whether a particular page may actually leave the pool right now (for
+ * instance because it is dirty and the pool runs in NO STEAL mode) is decided
+ * by the caller through an {@link EvictionFilter}.
+ * <p>
+ * Implementations must be safe to call from several threads. Hits are by
+ * far the most frequent event, so {@link #pageAccessed} may drop the update
+ * instead of blocking when another thread is working on the policy; a lost
+ * hit only makes the recency information slightly less precise.
+ *
+ * @see ClockReplacementPolicy
+ * @see TwoQueueReplacementPolicy
+ */
+public interface PageReplacementPolicy {
+
+    /**
+     * Tells the caller whether a candidate page may be evicted.
+     */
+    public interface EvictionFilter {
+        boolean canEvict(PageId pid);
+    }
+
+    /**
+     * A page that was not resident has just been admitted to the pool.
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * A resident page has been requested again.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * A page chosen by {@link #chooseVictim} has been evicted from the pool.
+     */
+    public void pageEvicted(PageId pid);
+
+    /**
+     * A page has been dropped from the pool for a reason other than
+     * replacement (e.g. {@link BufferPool#discardPage}).
+     */
+    public void pageDiscarded(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. The page stays tracked by
+     * the policy until the caller reports it with {@link #pageEvicted}.
+     *
+     * @param filter decides whether a candidate may be evicted
+     * @return the id of the victim, or null if no resident page passes the
+     *   filter
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+
+    /**
+     * @return the number of pages currently tracked by this policy
+     */
+    public int size();
+}
@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageTable maps page ids to the frames of the BufferPool.
+ * <p>
+ * The table is split into stripes selected by the hash of the PageId. Each
+ * stripe has its own read/write lock that only protects the id-to-frame map,
+ * so lookups of different pages (and concurrent lookups of the same page) do
+ * not serialize on a single monitor.
+ * <p>
+ * The contents of a frame are protected by the frame's own latch. A thread
+ * that misses on a page holds the latch of that page's frame while it reads
+ * the page from disk; threads asking for other pages are not affected.
+ *
+ * @see BufferPool
+ */
+class PageTable {
+
+    static final int DEFAULT_STRIPES = 16;
+
+    /**
+     * A slot of the buffer pool. The page reference is only replaced while
+     * holding the latch, but may be read without it.
+     */
+    static class Frame {
+        final PageId pid;
+        final ReentrantLock latch = new ReentrantLock();
+        volatile Page page;
+        // set under the latch once the frame has left the table
+        boolean removed;
+        // log offset just past the last UPDATE record written for the page;
+        // the log must be forced up to here before the page is written
+        long lsn;
+        // LSN the log had reached when the page was first dirtied since it
+        // was last written, or 0 if it is clean; set and cleared under the
+        // latch
+        volatile long recLsn;
+        // copy of the page as of its last UPDATE record, the before image of
+        // the next one; never modified, so it can be written without the page
+        // changing under the write
+        Page image;
+        // bumped every time the page is marked dirty, and the value it had
+        // when image was taken
+        int version;
+        int imageVersion;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private static class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final HashMap<PageId, Frame> frames = new HashMap<>();
+    }
+
+    private final Stripe[] _stripes;
+    private final AtomicInteger _reserved = new AtomicInteger();
+
+    PageTable() {
+        this(DEFAULT_STRIPES);
+    }
+
+    PageTable(int numStripes) {
+        _stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) _stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return _stripes[(h & 0x7fffffff) % _stripes.length];
+    }
+
+    /**
+     * @return the frame of the given page, or null if it has none
+     */
+    Frame get(PageId pid) {
+        Stripe s = stripeFor(pid);
+        s.lock.readLock().lock();
+        try {
+            return s.frames.get(pid);
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the resident page with the given id, or null
+     */
+    Page getPage(PageId pid) {
+        Frame f = get(pid);
+        return f == null ? null : f.page;
+    }
+
+    /**
+     * @return the frame of the given page, creating an empty one if needed
+     */
+    Frame getOrCreate(PageId pid) {
+        Frame f = get(pid);
+        if (f != null) return f;
+        Stripe s = stripeFor(pid);
+        s.lock.writeLock().lock();
+        try {
+            f = s.frames.get(pid);
+            if (f == null) {
+                f = new Frame(pid);
+                s.frames.put(pid, f);
+            }
+            return f;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a frame from the table. The caller must hold the frame's latch.
+     * If the frame held (or had reserved room for) a page, the reservation
+     * is given back.
+     */
+    void remove(Frame f, boolean reserved) {
+        Stripe s = stripeFor(f.pid);
+        s.lock.writeLock().lock();
+        try {
+            if (s.frames.get(f.pid) == f) s.frames.remove(f.pid);
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+        f.removed = true;
+        f.page = null;
+        if (reserved) _reserved.decrementAndGet();
+    }
+
+    /**
+     * Count one more frame against the capacity of the pool.
+     */
+    void reserve() {
+        _reserved.incrementAndGet();
+    }
+
+    /**
+     * @return the number of frames holding, or about to hold, a page
+     */
+    int size() {
+        return _reserved.get();
+    }
+
+    /**
+     * @return a snapshot of all frames in the table
+     */
+    List<Frame> frames() {
+        List<Frame> result = new ArrayList<>();
+        for (Stripe s : _stripes) {
+            s.lock.readLock().lock();
+            try {
+                result.addAll(s.frames.values());
+            } finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A secondary (non-clustered) index on one field of a table, stored in a
+ * BTreeFile keyed on its first field.
+ * <p>
+ * Every index tuple holds the indexed value of one table tuple followed by
+ * a locator for that tuple. In a HeapFile the locator is the tuple's
+ * RecordId, stored as page number and slot. Tuples of a BTreeFile move
+ * between pages as the tree splits and merges, so there the locator is the
+ * tuple's key in that BTreeFile instead, one field per key field.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex}, after which the
+ * BufferPool keeps them up to date as tuples are inserted and deleted, and
+ * {@link IndexScan} reads a table through them.
+ */
+public class SecondaryIndex {
+
+    private final int _tableid;
+    private final int _field;
+    private final DbFile _table;
+    private final BTreeFile _file;
+
+    /**
+     * Create an index on a field of a table. The index is empty; use
+     * {@link #create} to index the tuples already in the table.
+     *
+     * @param tableid the table to index
+     * @param field the index of the field to index
+     * @param f the file to store the index in
+     */
+    public SecondaryIndex(int tableid, int field, File f) {
+        _tableid = tableid;
+        _field = field;
+        _table = Database.getCatalog().getDatabaseFile(tableid);
+        _file = new BTreeFile(f, 0, indexTupleDesc());
+    }
+
+    /**
+     * Build an index over the tuples currently in a table with a
+     * BTreeBulkLoader, and add it to the Catalog. Tuples the table gets
+     * while the index is being built are not indexed.
+     *
+     * @param tid the transaction to read the table with
+     * @param tableid the table to index
+     * @param field the index of the field to index
+     * @param f an empty file to store the index in
+     * @param name the name of the index file's table
+     */
+    public static SecondaryIndex create(TransactionId tid, int tableid, int field, File f, String name)
+            throws IOException, DbException, TransactionAbortedException {
+        final SecondaryIndex index = new SecondaryIndex(tableid, field, f);
+        // the loader needs the index file in the catalog to build its pages
+        Database.getCatalog().addTable(index._file, name);
+        final DbFileIterator it = index._table.iterator(tid);
+        it.open();
+        try {
+            new BTreeBulkLoader(index._file.getTupleDesc(), 0).load(new AbstractDbFileIterator() {
+                public void open() {
+                }
+
+                public void rewind() throws DbException, TransactionAbortedException {
+                    it.rewind();
+                }
+
+                protected Tuple readNext() throws DbException, TransactionAbortedException {
+                    return it.hasNext() ? index.entry(it.next()) : null;
+                }
+            }, index._file);
+        } finally {
+            it.close();
+        }
+        Database.getCatalog().addIndex(index, name);
+        return index;
+    }
+
+    /**
+     * The index tuples: the indexed field, then the page number and slot of
+     * a HeapFile tuple or the key of a BTreeFile tuple.
+     */
+    private TupleDesc indexTupleDesc() {
+        TupleDesc td = _table.getTupleDesc();
+        Type keyType = td.getFieldType(_field);
+        String keyName = td.getFieldName(_field);
+        if (_table instanceof BTreeFile) {
+            int[] pkeys = ((BTreeFile) _table).keyFields();
+            Type[] types = new Type[pkeys.length + 1];
+            String[] names = new String[pkeys.length + 1];
+            types[0] = keyType;
+            names[0] = keyName;
+            for (int i = 0; i < pkeys.length; i++) {
+                types[i + 1] = td.getFieldType(pkeys[i]);
+                names[i + 1] = td.getFieldName(pkeys[i]);
+            }
+            return new TupleDesc(types, names);
+        }
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { keyName, "page", "slot" });
+    }
+
+    /** @return the id of the indexed table */
+    public int getTableId() {
+        return _tableid;
+    }
+
+    /** @return the index of the indexed field */
+    public int getField() {
+        return _field;
+    }
+
+    /** @return the BTreeFile the index is stored in */
+    public BTreeFile getFile() {
+        return _file;
+    }
+
+    /**
+     * @return the index tuple for a tuple of the table, which must have its
+     *         RecordId set if the table is not a BTreeFile
+     */
+    private Tuple entry(Tuple t) {
+        Tuple e = new Tuple(_file.getTupleDesc());
+        e.setField(0, t.getField(_field));
+        if (_table instanceof BTreeFile) {
+            int[] pkeys = ((BTreeFile) _table).keyFields();
+            for (int i = 0; i < pkeys.length; i++)
+                e.setField(i + 1, t.getField(pkeys[i]));
+        } else {
+            RecordId rid = t.getRecordId();
+            e.setField(1, new IntField(rid.getPageId().pageNumber()));
+            e.setField(2, new IntField(rid.tupleno()));
+        }
+        return e;
+    }
+
+    /**
+     * @return the key of the BTreeFile tuple an index tuple points to
+     */
+    private Field locator(Tuple e) {
+        int n = e.getTupleDesc().numFields() - 1;
+        if (n == 1)
+            return e.getField(1);
+        Field[] fields = new Field[n];
+        for (int i = 0; i < n; i++)
+            fields[i] = e.getField(i + 1);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * Add the entry for a tuple that was just inserted into the table.
+     *
+     * @return the index pages that were modified
+     */
+    public ArrayList<Page> insertEntry(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return _file.insertTuple(tid, entry(t));
+    }
+
+    /**
+     * Remove the entry for a tuple that is about to be deleted from the
+     * table.
+     *
+     * @return the index pages that were modified
+     * @throws DbException if the index has no entry for the tuple
+     */
+    public ArrayList<Page> deleteEntry(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple target = entry(t);
+        DbFileIterator it = _file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, target.getField(0)));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple e = it.next();
+                boolean same = true;
+                for (int i = 1; i < target.getTupleDesc().numFields(); i++)
+                    same &= e.getField(i).equals(target.getField(i));
+                if (same) return _file.deleteTuple(tid, e);
+            }
+        } finally {
+            it.close();
+        }
+        throw new DbException("no index entry for tuple " + t);
+    }
+
+    /**
+     * @return an iterator over the tuples of the table whose indexed field
+     *         matches the predicate, or all of them if it is null, in order
+     *         of the indexed field
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new LookupIterator(tid, ipred);
+    }
+
+    /**
+     * Fetches the table tuples for the index entries that match a
+     * predicate.
+     */
+    private class LookupIterator extends AbstractDbFileIterator {
+        private final TransactionId _tid;
+        private final DbFileIterator _entries;
+
+        // BTreeFile tables: the tuples with the key of the current entry,
+        // and the keys already fetched for the current indexed value
+        private DbFileIterator _matches;
+        private Field _value;
+        private final Set<Field> _fetched = new HashSet<>();
+
+        LookupIterator(TransactionId tid, IndexPredicate ipred) {
+            _tid = tid;
+            _entries = (ipred == null ? _file.iterator(tid) : _file.indexIterator(tid, ipred));
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            _entries.open();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!(_table instanceof BTreeFile)) {
+                while (_entries.hasNext()) {
+                    Tuple e = _entries.next();
+                    HeapPageId pid = new HeapPageId(_tableid, ((IntField) e.getField(1)).getValue());
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(_tid, pid, Permissions.READ_ONLY);
+                    Tuple t = page.getTuple(((IntField) e.getField(2)).getValue());
+                    if (t != null) return t;
+                }
+                return null;
+            }
+
+            // several tuples can share a key, and each of them that has the
+            // indexed value has an entry of its own; fetch them all once
+            while (true) {
+                while (_matches != null && _matches.hasNext()) {
+                    Tuple t = _matches.next();
+                    if (t.getField(_field).equals(_value)) return t;
+                }
+                if (!_entries.hasNext()) return null;
+                Tuple e = _entries.next();
+                if (_value == null || !_value.equals(e.getField(0))) {
+                    _value = e.getField(0);
+                    _fetched.clear();
+                }
+                Field key = locator(e);
+                if (!_fetched.add(key)) continue;
+                closeMatches();
+                _matches = ((BTreeFile) _table).indexIterator(_tid,
+                        new IndexPredicate(Predicate.Op.EQUALS, key));
+                _matches.open();
+            }
+        }
+
+        private void closeMatches() {
+            if (_matches != null) {
+                _matches.close();
+                _matches = null;
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            closeMatches();
+            _entries.close();
+            _value = null;
+            _fetched.clear();
+        }
+    }
+}
@@ -82,7 +82,7 @@ public class TableStats {
 
     private int _tableid;
     private int _ioCostPerPage;
-    private HeapFile _table;
+    private DbFile _table;
     private LinkedHashMap<Integer, IntHistogram> _field_int;
     private LinkedHashMap<Integer, StringHistogram> _field_string;
     private int _totalTuples;
@@ -150,7 +150,7 @@ public class TableStats {
         // some code goes here
         _tableid = tableid;
         _ioCostPerPage = ioCostPerPage;
-        _table = ((HeapFile) Database.getCatalog().getDatabaseFile(_tableid));
+        _table = Database.getCatalog().getDatabaseFile(_tableid);
         _totalTuples = 0;
         _field_int = new LinkedHashMap<>();
         _field_string = new LinkedHashMap<>();
@@ -174,6 +174,30 @@ public class TableStats {
         return _table.numPages() * _ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of reading the tuples of a B+ tree table whose keys
+     * fall in a range with a BTreeScan: one page per level of internal pages
+     * to find the first leaf, then the leaf pages that hold the range. As
+     * with estimateScanCost, every page read costs the same.
+     *
+     * @param selectivity
+     *            The fraction of the tuples of the table in the range
+     * @return The estimated cost of the index scan
+     * @throws UnsupportedOperationException if the table is not a BTreeFile
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        if (!(_table instanceof BTreeFile))
+            throw new UnsupportedOperationException("table " + _tableid + " has no key index");
+        BTreeFile bf = (BTreeFile) _table;
+        int keySize = 0;
+        for (int f : bf.keyFields())
+            keySize += bf.getTupleDesc().getFieldType(f).getLen();
+        int fanout = BTreeInternalPage.getMaxEntries(keySize) + 1;
+        int pages = Math.max(1, _table.numPages());
+        int height = (int) Math.ceil(Math.log(pages) / Math.log(fanout));
+        return (height + Math.max(1, Math.ceil(selectivity * pages))) * _ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -1,15 +1,22 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Tuples read from a page may be views over the serialized bytes of the
+ * page: their fields are only decoded, one at a time, when they are first
+ * asked for. Such a tuple behaves exactly like one whose fields were all set
+ * up front.
  */
 public class Tuple implements Serializable {
 
@@ -25,17 +32,41 @@ public class Tuple implements Serializable {
 
     private TupleDesc _td;
     private RecordId _rid;
-    private List<Field> _fieldlist;
+    private Field[] _fieldlist;
+
+    // serialized form of the fields not decoded yet, or null
+    private transient ByteBuffer _data;
+    private transient int _offset;
+    // whether a field has been set since the tuple was read
+    private boolean _modified;
 
     public Tuple(TupleDesc td) {
         _td = td;
         _rid = null;
-        _fieldlist = Arrays.asList(new Field[td.numFields()]);
+        _fieldlist = new Field[td.numFields()];
 //        System.out.println("++");
 //        System.out.println(_fieldlist.size());
         // some code goes here
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from their serialized
+     * form. The bytes must not change for the lifetime of the tuple.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param data
+     *            the buffer holding the serialized tuple; it is only read
+     *            with absolute gets, so it may be shared between tuples.
+     * @param offset
+     *            the index of the first byte of the tuple in data
+     */
+    Tuple(TupleDesc td, ByteBuffer data, int offset) {
+        this(td);
+        _data = data;
+        _offset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -74,7 +105,8 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
 //        System.out.println(_fieldlist.size());
-        _fieldlist.set(i, f);
+        _fieldlist[i] = f;
+        _modified = true;
         // some code goes here
     }
 
@@ -86,7 +118,38 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return _fieldlist.get(i);
+        Field f = _fieldlist[i];
+        if (f == null && _data != null) {
+            // decoding twice in a race is harmless; fields are immutable
+            try {
+                f = _td.getFieldType(i).parse(_data, _offset + _td.getFieldOffset(i));
+            } catch (ParseException e) {
+                throw new IllegalStateException("corrupt tuple data", e);
+            }
+            _fieldlist[i] = f;
+        }
+        return f;
+    }
+
+    /**
+     * Decode every field that has not been decoded yet and drop the reference
+     * to the serialized form. Operators that hold on to the tuples of their
+     * children, such as OrderBy and HashEquiJoin, call this so that a tuple
+     * does not keep a whole page alive and stays valid once the page changes.
+     */
+    public void materialize() {
+        if (_data == null) return;
+        for (int i = 0; i < _fieldlist.length; i++) getField(i);
+        _data = null;
+    }
+
+    /**
+     * Move the serialized form of this tuple from one buffer to another
+     * holding the same bytes at the same offsets. Does nothing if the tuple
+     * was not read from the first buffer.
+     */
+    void rebind(ByteBuffer from, ByteBuffer to) {
+        if (_data == from) _data = to;
     }
 
     /**
@@ -99,10 +162,10 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         String result = "";
-        for (int i = 0; i < _fieldlist.size() - 1; i++) {
-            result = result + _fieldlist.get(i).toString() + "\t";
+        for (int i = 0; i < _fieldlist.length - 1; i++) {
+            result = result + getField(i).toString() + "\t";
         }
-        result = result + _fieldlist.get(_fieldlist.size() - 1);
+        result = result + getField(_fieldlist.length - 1);
         return result;
         // some code goes here
 //        throw new UnsupportedOperationException("Implement this");
@@ -114,7 +177,8 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
-        return _fieldlist.iterator();
+        materialize();
+        return Arrays.asList(_fieldlist).iterator();
         // some code goes here
     }
 
@@ -124,7 +188,28 @@ public class Tuple implements Serializable {
      * */
     public void resetTupleDesc(TupleDesc td)
     {
+        // the serialized form can only be read with the old TupleDesc
+        materialize();
         _td = td;
         // some code goes here
     }
+
+    /**
+     * Write the serialized form of this tuple into buf at its current
+     * position. A tuple read from a page that has not been changed since is
+     * copied in one go, without decoding its fields.
+     */
+    void serialize(ByteBuffer buf) {
+        if (_data != null && !_modified && _data.hasArray()) {
+            buf.put(_data.array(), _data.arrayOffset() + _offset, _td.getSize());
+            return;
+        }
+        for (int i = 0; i < _fieldlist.length; i++)
+            getField(i).serialize(buf);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
 }
@@ -37,6 +37,7 @@ public class TupleDesc implements Serializable {
 
     private ArrayList<TDItem> _tdArray = new ArrayList<TDItem>();
     private int _byte_size = 0;
+    private int[] _offsets;
     /**
      * @return
      *        An iterator which iterates over all the field TDItems
@@ -69,6 +70,7 @@ public class TupleDesc implements Serializable {
             _size += typeAr[i].getLen();
         }
         _byte_size = _size;
+        _offsets = computeOffsets(typeAr);
         // some code goes here
     }
 
@@ -87,9 +89,20 @@ public class TupleDesc implements Serializable {
             _size += typeAr[i].getLen();
         }
         _byte_size = _size;
+        _offsets = computeOffsets(typeAr);
         // some code goes here
     }
 
+    private static int[] computeOffsets(Type[] typeAr) {
+        int[] offsets = new int[typeAr.length];
+        int offset = 0;
+        for (int i = 0; i < typeAr.length; ++i) {
+            offsets[i] = offset;
+            offset += typeAr[i].getLen();
+        }
+        return offsets;
+    }
+
     /**
      * @return the number of fields in this TupleDesc
      */
@@ -158,6 +171,20 @@ public class TupleDesc implements Serializable {
         return this._byte_size;
     }
 
+    /**
+     * Gets the byte offset of the ith field within the serialized form of a
+     * tuple of this TupleDesc.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i < 0 || i >= _offsets.length) throw new NoSuchElementException();
+        return _offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 2Q page replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * Newly loaded pages enter a small FIFO queue (A1in). A page that is only
+ * touched once, as every page of a sequential scan is, falls out of A1in
+ * without ever competing with the pages in the main LRU queue (Am). When a
+ * page leaves A1in its id is remembered in a ghost queue (A1out); if the page
+ * is requested again while it is still remembered, it is promoted straight
+ * into Am. Hot pages such as the internal nodes of a B+ tree therefore end up
+ * in Am, where a large scan cannot flush them.
+ * <p>
+ * All queues are linked hash tables, so admissions, hits and the common case
+ * of victim selection are O(1). A hit does not wait for the lock: it is
+ * queued, and whoever holds the lock next applies the queued hits, in order,
+ * before doing anything else.
+ *
+ * @see PageReplacementPolicy
+ */
+public class TwoQueueReplacementPolicy implements PageReplacementPolicy {
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final LinkedHashSet<PageId> _a1in;
+    private final LinkedHashSet<PageId> _a1out;
+    private final LinkedHashMap<PageId, Boolean> _am;
+    private final ConcurrentLinkedQueue<PageId> _hits = new ConcurrentLinkedQueue<>();
+    private final int _kin;
+    private final int _kout;
+
+    /**
+     * Create a 2Q policy with the queue sizes recommended by the paper: A1in
+     * holds a quarter of the pool and A1out remembers half a pool of ids.
+     *
+     * @param capacity the number of frames in the buffer pool
+     */
+    public TwoQueueReplacementPolicy(int capacity) {
+        this(capacity, Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param capacity the number of frames in the buffer pool
+     * @param kin the target size of the A1in FIFO queue
+     * @param kout the number of evicted page ids remembered in A1out
+     * @throws IllegalArgumentException if kin is not between 1 and capacity,
+     *   or kout is negative
+     */
+    public TwoQueueReplacementPolicy(int capacity, int kin, int kout) {
+        if (kin < 1 || kin > capacity)
+            throw new IllegalArgumentException("A1in size " + kin + " does not fit a pool of " + capacity);
+        if (kout < 0)
+            throw new IllegalArgumentException("negative A1out size " + kout);
+        _a1in = new LinkedHashSet<>();
+        _a1out = new LinkedHashSet<>();
+        _am = new LinkedHashMap<>(16, 0.75f, true);
+        _kin = kin;
+        _kout = kout;
+    }
+
+    public void pageLoaded(PageId pid) {
+        _lock.lock();
+        try {
+            applyHits();
+            if (_am.containsKey(pid) || _a1in.contains(pid)) {
+                hit(pid);
+                return;
+            }
+            if (_a1out.remove(pid)) {
+                _am.put(pid, Boolean.TRUE);
+            } else {
+                _a1in.add(pid);
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        _hits.add(pid);
+        if (!_lock.tryLock()) return;
+        try {
+            applyHits();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void pageEvicted(PageId pid) {
+        _lock.lock();
+        try {
+            applyHits();
+            if (_a1in.remove(pid)) {
+                _a1out.add(pid);
+                if (_a1out.size() > _kout) {
+                    Iterator<PageId> it = _a1out.iterator();
+                    it.next();
+                    it.remove();
+                }
+            } else {
+                _am.remove(pid);
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void pageDiscarded(PageId pid) {
+        _lock.lock();
+        try {
+            applyHits();
+            _a1in.remove(pid);
+            _am.remove(pid);
+            _a1out.remove(pid);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        _lock.lock();
+        try {
+            applyHits();
+            PageId victim = null;
+            if (_a1in.size() > _kin || _am.isEmpty()) {
+                victim = firstEvictable(_a1in, filter);
+                if (victim == null) victim = firstEvictable(_am.keySet(), filter);
+            } else {
+                victim = firstEvictable(_am.keySet(), filter);
+                if (victim == null) victim = firstEvictable(_a1in, filter);
+            }
+            return victim;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int size() {
+        _lock.lock();
+        try {
+            return _a1in.size() + _am.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /** Apply the hits queued by pageAccessed. The caller must hold the lock. */
+    private void applyHits() {
+        PageId pid;
+        while ((pid = _hits.poll()) != null) hit(pid);
+    }
+
+    private void hit(PageId pid) {
+        // a hit in A1in is a correlated reference and does not count;
+        // a hit in Am moves the page to the MRU end
+        _am.get(pid);
+    }
+
+    private static PageId firstEvictable(Iterable<PageId> queue, EvictionFilter filter) {
+        for (PageId pid : queue) {
+            if (filter.canEvict(pid)) return pid;
+        }
+        return null;
+    }
+}
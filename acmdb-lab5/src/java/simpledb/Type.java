@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,15 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            try {
+                return new IntField(buf.getInt(offset));
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("couldn't parse", offset);
+            }
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +52,25 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            try {
+                int strLen = buf.getInt(offset);
+                if (strLen < 0 || strLen > STRING_LEN)
+                    throw new ParseException("bad string length " + strLen, offset);
+                if (offset + getLen() > buf.limit())
+                    throw new ParseException("couldn't parse", offset);
+                if (buf.hasArray())
+                    return new StringField(new String(buf.array(), buf.arrayOffset() + offset + 4, strLen), STRING_LEN);
+                byte bs[] = new byte[strLen];
+                for (int i = 0; i < strLen; i++)
+                    bs[i] = buf.get(offset + 4 + i);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("couldn't parse", offset);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +89,29 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer, starting at its current position. The
+   *   position is advanced by {@link #getLen()} bytes.
+   * @param buf The buffer to read from
+   * @throws ParseException if the data in the buffer is not of the
+   *   appropriate type.
+   */
+    public Field parse(ByteBuffer buf) throws ParseException {
+        Field f = parse(buf, buf.position());
+        buf.position(buf.position() + getLen());
+        return f;
+    }
+
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer at an absolute offset. The buffer's
+   *   position is not changed, so one buffer may be read by several threads.
+   * @param buf The buffer to read from
+   * @param offset The index of the first byte of the field in buf
+   * @throws ParseException if the data in the buffer is not of the
+   *   appropriate type.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset) throws ParseException;
+
 }
@@ -0,0 +1,137 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Random 2-field tuples, generated as they are read rather than held
+	 * in memory.
+	 */
+	private static class RandomTuples extends AbstractDbFileIterator {
+		private final int rows;
+		private final Random r = new Random(42);
+		private int produced;
+
+		RandomTuples(int rows) {
+			this.rows = rows;
+		}
+
+		public void open() {
+		}
+
+		public void rewind() {
+			throw new UnsupportedOperationException();
+		}
+
+		protected Tuple readNext() {
+			if(produced == rows)
+				return null;
+			produced++;
+			return Utility.getHeapTuple(new int[] { r.nextInt(), r.nextInt() });
+		}
+	}
+
+	private static BTreeFile emptyBTreeFile() throws Exception {
+		File f = File.createTempFile("bulkload", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.openBTreeFile(2, f, 0);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * An index built from a heap file through several merge passes holds
+	 * every tuple in key order, and its pages are filled to the fill factor.
+	 */
+	@Test public void loadFromHeapFile() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		BTreeFile bf = emptyBTreeFile();
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(hf.getTupleDesc(), 0);
+		loader.setFillFactors(0.7, 0.7);
+		loader.setRunSize(1000);
+		loader.setMergeFanIn(4);
+		loader.load(tid, hf, bf);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : tuples)
+			keys.add(t.get(0));
+		Collections.sort(keys);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int i = 0;
+		while(it.hasNext())
+			assertEquals(keys.get(i++).intValue(), ((IntField) it.next().getField(0)).getValue());
+		it.close();
+		assertEquals(keys.size(), i);
+
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		assertEquals((int) (first.getMaxTuples() * 0.7), first.getNumTuples());
+	}
+
+	/**
+	 * Loading nothing builds an empty tree that takes inserts.
+	 */
+	@Test public void loadEmpty() throws Exception {
+		BTreeFile bf = emptyBTreeFile();
+		new BTreeBulkLoader(bf.getTupleDesc(), 0).load(new RandomTuples(0), bf);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		bf.insertTuple(tid, BTreeUtility.getBTreeTuple(new int[] { 1, 2 }));
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * Reports the load rate for a stream of rows far larger than one run,
+	 * so that memory use stays at a few runs' worth of tuples.
+	 */
+	@Test public void loadBenchmark() throws Exception {
+		int rows = 500000;
+		BTreeFile bf = emptyBTreeFile();
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf.getTupleDesc(), 0);
+		loader.setRunSize(20000);
+		long start = System.nanoTime();
+		loader.load(new RandomTuples(rows), bf);
+		long elapsed = System.nanoTime() - start;
+		System.out.println("BTreeBulkLoaderTest: loaded " + rows + " rows into "
+				+ bf.numPages() + " pages in " + elapsed / 1000000 + " ms, "
+				+ (long) (rows * 1e9 / elapsed) + " rows/s");
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
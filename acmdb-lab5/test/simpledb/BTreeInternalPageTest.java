@@ -313,6 +313,30 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild() against a scan of the
+	 * entries, also after a delete
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(page.iterator().next().getLeftChild(), page.findChild(null));
+		for (int round = 0; round < 2; round++) {
+			for (int key = -1; key < 66000; key += 97) {
+				IntField f = new IntField(key);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = it.next();
+				while (f.compare(Predicate.Op.GREATER_THAN, e.getKey()) && it.hasNext())
+					e = it.next();
+				BTreePageId expected = f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()) ?
+						e.getLeftChild() : e.getRightChild();
+				assertEquals(expected, page.findChild(f));
+			}
+			Iterator<BTreeEntry> it = page.iterator();
+			it.next();
+			page.deleteKeyAndRightChild(it.next());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
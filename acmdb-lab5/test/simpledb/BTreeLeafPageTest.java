@@ -336,6 +336,36 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findFirstSlot() against a scan of the page,
+	 * also after a delete
+	 */
+	@Test public void findFirstSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		for (int round = 0; round < 2; round++) {
+			for (int key = -1; key < 66000; key += 97) {
+				IntField f = new IntField(key);
+				Tuple expected = null;
+				Iterator<Tuple> it = page.iterator();
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
+						expected = t;
+						break;
+					}
+				}
+				int slot = page.findFirstSlot(f);
+				if (expected == null) {
+					assertEquals(-1, slot);
+				} else {
+					assertEquals(expected.getRecordId().tupleno(), slot);
+					assertEquals(expected.getField(0), page.iterator(slot).next().getField(0));
+				}
+			}
+			page.deleteTuple(page.iterator().next());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
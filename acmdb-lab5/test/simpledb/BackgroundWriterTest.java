@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 10;
+
+    /** HeapFile that remembers the page numbers of every writePages call */
+    static class RecordingHeapFile extends HeapFile {
+        final List<List<Integer>> writes = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+        RecordingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePages(List<Page> pages) throws IOException {
+            List<Integer> numbers = new ArrayList<Integer>();
+            for (Page p : pages) numbers.add(p.getId().pageNumber());
+            writes.add(numbers);
+            super.writePages(pages);
+        }
+    }
+
+    private RecordingHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES,
+                1000, null, null);
+        hf = new RecordingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    private int countTuples() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /** Delete one tuple from every page, last page first */
+    private void deleteFromEveryPage(Transaction t) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = PAGES - 1; i >= 0; i--) {
+            HeapPage page = (HeapPage) bp.getPage(t.getId(), new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            Iterator<Tuple> it = page.iterator();
+            bp.deleteTuple(t.getId(), it.next());
+        }
+    }
+
+    /**
+     * A commit writes the pages of a file in page order, adjacent pages in
+     * a single write.
+     */
+    @Test public void commitCoalescesWrites() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromEveryPage(t);
+        assertEquals(PAGES, Database.getBufferPool().getDirtyPageCount());
+        t.commit();
+
+        assertEquals(0, Database.getBufferPool().getDirtyPageCount());
+        assertEquals(1, hf.writes.size());
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < PAGES; i++) expected.add(i);
+        assertEquals(expected, hf.writes.get(0));
+        assertEquals(504 * PAGES - PAGES, countTuples());
+    }
+
+    /**
+     * Once more pages are dirty than the high watermark, the writer cleans
+     * them in the background down to the low watermark, and the stolen
+     * pages are still rolled back on abort.
+     */
+    @Test public void cleansDownToLowWatermark() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.setDirtyWatermarks(2, 4);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromEveryPage(t);
+        for (int i = 0; i < 100 && bp.getDirtyPageCount() > 2; i++)
+            Thread.sleep(50);
+        assertTrue(bp.getDirtyPageCount() <= 2);
+        assertTrue(bp.getBackgroundWriteCount() >= PAGES - 4);
+        synchronized (hf.writes) {
+            for (List<Integer> write : hf.writes) {
+                for (int i = 1; i < write.size(); i++)
+                    assertTrue(write.get(i - 1) < write.get(i));
+            }
+        }
+
+        t.abort();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(504 * PAGES, countTuples());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
@@ -0,0 +1,181 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompositeKeyTest extends SimpleDbTestBase {
+	private static final int PREFIXES = 10;
+	private static final int SUFFIXES = 1000;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+	private ArrayList<int[]> tuples;
+
+	/**
+	 * Set up a B+ tree keyed on its first two fields, grown by inserts on
+	 * small pages so that both leaf and internal pages split.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		tid = new TransactionId();
+
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.openBTreeFile(3, f, new int[] { 0, 1 });
+
+		Random r = new Random(7);
+		tuples = new ArrayList<int[]>();
+		for(int i = 0; i < 10000; i++) {
+			int[] t = new int[] { r.nextInt(PREFIXES), r.nextInt(SUFFIXES), i };
+			tuples.add(t);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(t));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static int value(Tuple t, int field) {
+		return ((IntField) t.getField(field)).getValue();
+	}
+
+	/**
+	 * Check that a scan returns exactly the tuples whose first two fields
+	 * lie between lo and hi, inclusive, compared lexicographically.
+	 */
+	private void checkScan(IndexPredicate ipred, int[] lo, int[] hi) throws Exception {
+		int expected = 0;
+		for(int[] t : tuples) {
+			if(compare(t, lo) >= 0 && compare(t, hi) <= 0)
+				expected++;
+		}
+
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		int count = 0;
+		int[] prev = null;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			int[] cur = new int[] { value(t, 0), value(t, 1) };
+			assertTrue(compare(cur, lo) >= 0 && compare(cur, hi) <= 0);
+			assertTrue(prev == null || compare(prev, cur) <= 0);
+			prev = cur;
+			count++;
+		}
+		it.close();
+		assertEquals(expected, count);
+	}
+
+	private static int compare(int[] a, int[] b) {
+		if(a[0] != b[0])
+			return a[0] < b[0] ? -1 : 1;
+		return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+	}
+
+	private static CompositeField key(int... values) {
+		Field[] fields = new Field[values.length];
+		for(int i = 0; i < values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Keys compare field by field, and a shorter key is a prefix of the
+	 * keys that start with it.
+	 */
+	@Test public void lexicographicOrder() {
+		assertTrue(key(1, 5).compare(Op.LESS_THAN, key(2, 0)));
+		assertTrue(key(2, 0).compare(Op.LESS_THAN, key(2, 1)));
+		assertTrue(key(2, 1).compare(Op.EQUALS, key(2)));
+		assertTrue(key(2, 1).compare(Op.EQUALS, new IntField(2)));
+		assertTrue(key(2, 1).compare(Op.GREATER_THAN, new IntField(1)));
+		assertFalse(key(2, 1).equals(key(2)));
+	}
+
+	/**
+	 * The tree stays well formed through splits, and every tuple comes back
+	 * in key order.
+	 */
+	@Test public void splits() throws Exception {
+		assertTrue(bf.numPages() > 100);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		checkScan(new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(0, 0)),
+				new int[] { 0, 0 }, new int[] { PREFIXES, 0 });
+	}
+
+	/**
+	 * An equality predicate on a prefix of the key, or a range bounded on
+	 * both ends, reads only the matching tuples.
+	 */
+	@Test public void prefixScans() throws Exception {
+		for(int a = 0; a < PREFIXES; a += 3) {
+			checkScan(new IndexPredicate(Op.EQUALS, new IntField(a)),
+					new int[] { a, 0 }, new int[] { a, SUFFIXES });
+			checkScan(new IndexPredicate(Op.EQUALS, key(a)),
+					new int[] { a, 0 }, new int[] { a, SUFFIXES });
+			checkScan(new IndexPredicate(Op.EQUALS, key(a, 500)),
+					new int[] { a, 500 }, new int[] { a, 500 });
+			checkScan(new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(a, 200), Op.LESS_THAN_OR_EQ, key(a, 400)),
+					new int[] { a, 200 }, new int[] { a, 400 });
+			checkScan(new IndexPredicate(Op.GREATER_THAN, key(a, 900), Op.LESS_THAN_OR_EQ, key(a + 1, 100)),
+					new int[] { a, 901 }, new int[] { a + 1, 100 });
+		}
+	}
+
+	/**
+	 * Deleting whole prefixes merges and redistributes pages, and leaves the
+	 * tree well formed.
+	 */
+	@Test public void merges() throws Exception {
+		for(int a = 0; a < PREFIXES - 2; a++) {
+			while(true) {
+				DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(a)));
+				it.open();
+				Tuple t = it.hasNext() ? it.next() : null;
+				it.close();
+				if(t == null)
+					break;
+				Database.getBufferPool().deleteTuple(tid, t);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		Iterator<int[]> it = tuples.iterator();
+		while(it.hasNext()) {
+			if(it.next()[0] < PREFIXES - 2)
+				it.remove();
+		}
+		checkScan(new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(0, 0)),
+				new int[] { 0, 0 }, new int[] { PREFIXES, 0 });
+
+		// inserting into the emptied key range splits pages again
+		for(int i = 0; i < 1000; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[] { 0, i, i }));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CompositeKeyTest.class);
+	}
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FileHandleTest extends SimpleDbTestBase {
+
+    private File f;
+    private FileHandle handle;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("filehandle", ".dat");
+        f.deleteOnExit();
+        handle = new FileHandle(f);
+    }
+
+    @After public void tearDown() throws Exception {
+        handle.close();
+    }
+
+    /**
+     * Positional writes land where they are asked to and can be read back.
+     */
+    @Test public void positionalReadWrite() throws Exception {
+        handle.write(new byte[] {1, 2, 3, 4}, 8);
+        assertEquals(12, handle.size());
+
+        byte[] buf = new byte[4];
+        assertEquals(4, handle.read(buf, 8));
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, buf);
+
+        // a read that runs off the end is short; one past the end gets -1
+        assertEquals(2, handle.read(new byte[4], 10));
+        assertEquals(-1, handle.read(new byte[4], 12));
+    }
+
+    /**
+     * A gathering write puts the buffers next to each other at the offset,
+     * and positional writes still go where they are asked to afterwards.
+     */
+    @Test public void gatheringWrite() throws Exception {
+        ByteBuffer[] bufs = new ByteBuffer[] {
+            ByteBuffer.wrap(new byte[] {1, 2}), ByteBuffer.wrap(new byte[0]),
+            ByteBuffer.wrap(new byte[] {3, 4, 5})
+        };
+        handle.write(bufs, 4);
+        assertEquals(9, handle.size());
+        handle.write(new byte[] {9}, 0);
+
+        byte[] buf = new byte[9];
+        assertEquals(9, handle.read(buf, 0));
+        assertArrayEquals(new byte[] {9, 0, 0, 0, 1, 2, 3, 4, 5}, buf);
+    }
+
+    /**
+     * Appends return consecutive offsets.
+     */
+    @Test public void append() throws Exception {
+        assertEquals(0, handle.append(new byte[10]));
+        assertEquals(10, handle.append(new byte[5]));
+        assertEquals(15, handle.size());
+    }
+
+    /**
+     * The size follows writes made outside the handle, and a closed handle
+     * reopens on demand.
+     */
+    @Test public void externalWritesAndReopen() throws Exception {
+        handle.write(new byte[4], 0);
+        FileOutputStream out = new FileOutputStream(f, true);
+        out.write(new byte[6]);
+        out.close();
+        assertEquals(10, handle.size());
+
+        handle.close();
+        handle.write(new byte[] {7}, 0);
+        byte[] buf = new byte[1];
+        handle.read(buf, 0);
+        assertEquals(7, buf[0]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleTest.class);
+    }
+}
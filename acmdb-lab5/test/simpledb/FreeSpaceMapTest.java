@@ -0,0 +1,151 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /** @return an empty heap file whose map is cleaned up with it */
+    private static File tempHeapFile() throws Exception {
+        File f = File.createTempFile("freespace", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        return f;
+    }
+
+    /**
+     * findFree skips full pages and wraps around.
+     */
+    @Test public void findFree() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(tempHeapFile());
+        assertEquals(2, fsm.findFree(2, 5));
+
+        fsm.setFree(2, false);
+        fsm.setFree(3, false);
+        fsm.setFree(4, false);
+        assertEquals(0, fsm.findFree(2, 5));
+
+        fsm.setFree(0, false);
+        fsm.setFree(1, false);
+        assertEquals(-1, fsm.findFree(2, 5));
+        // pages the map has never seen count as free
+        assertEquals(5, fsm.findFree(2, 6));
+
+        fsm.setFree(3, true);
+        assertEquals(3, fsm.findFree(4, 5));
+        fsm.close();
+    }
+
+    /**
+     * The map is written through to its file and read back on open.
+     */
+    @Test public void persistent() throws Exception {
+        File f = tempHeapFile();
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        fsm.setFree(1, false);
+        fsm.setFree(9, false);
+        fsm.close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(f);
+        assertTrue(reopened.isFree(0));
+        assertFalse(reopened.isFree(1));
+        assertFalse(reopened.isFree(9));
+        reopened.close();
+    }
+
+    /**
+     * The map survives writes through the HeapFile, but not a heap file that
+     * has been rewritten behind its back.
+     */
+    @Test public void staleMapDropped() throws Exception {
+        File f = tempHeapFile();
+        HeapFileEncoder.convert(new ArrayList<ArrayList<Integer>>(), f, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, f);
+        hf.getFreeSpaceMap().setFree(0, false);
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData()));
+        hf.getFreeSpaceMap().close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(f);
+        assertFalse(reopened.isFree(0));
+        reopened.close();
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        tuples.add(new ArrayList<Integer>(Arrays.asList(1, 2)));
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        reopened = new FreeSpaceMap(f);
+        assertTrue(reopened.isFree(0));
+        reopened.close();
+        // the stale bits are gone from the sidecar too
+        assertEquals(16, FreeSpaceMap.fileFor(f).length());
+    }
+
+    /**
+     * Heap pages keep the map up to date, and inserts do not lock pages the
+     * map knows to be full.
+     */
+    @Test public void heapFileInserts() throws Exception {
+        // page 0 is full, page 1 has room
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 + 10, null, null);
+        FreeSpaceMap fsm = hf.getFreeSpaceMap();
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+
+        TransactionId tid = new TransactionId();
+        HeapPage full = (HeapPage) Database.getBufferPool().getPage(tid, p0, Permissions.READ_WRITE);
+        assertEquals(0, full.getNumEmptySlots());
+        Tuple victim = full.iterator().next();
+        Database.getBufferPool().deleteTuple(tid, victim);
+        assertTrue(fsm.isFree(0));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        assertFalse(fsm.isFree(0));
+        Database.getBufferPool().transactionComplete(tid);
+
+        for (int i = 0; i < 5; i++) {
+            TransactionId t = new TransactionId();
+            Database.getBufferPool().insertTuple(t, hf.getId(), Utility.getHeapTuple(i, 2));
+            assertFalse(Database.getBufferPool().holdsLock(t, p0));
+            assertTrue(Database.getBufferPool().holdsLock(t, p1));
+            Database.getBufferPool().transactionComplete(t);
+        }
+    }
+
+    /**
+     * A page that an aborted insert filled is free again afterwards, so the
+     * next insert uses it instead of adding a page.
+     */
+    @Test public void abortedInsertFreesPage() throws Exception {
+        // one page with one free slot
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 503, null, null);
+        FreeSpaceMap fsm = hf.getFreeSpaceMap();
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        assertFalse(fsm.isFree(0));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertTrue(fsm.isFree(0));
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(2, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, hf.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static LogFile tempLog() throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        log.segmentFile(0).deleteOnExit();
+        return log;
+    }
+
+    /**
+     * Run commits from the given number of threads and return the number of
+     * commits per second.
+     */
+    private static double runCommits(final LogFile log, int threads, final int commitsPerThread)
+            throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commitsPerThread; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        long elapsed = System.nanoTime() - start;
+        if (failure.get() != null) throw failure.get();
+        return threads * commitsPerThread * 1e9 / elapsed;
+    }
+
+    /**
+     * A commit only returns once its record is on disk.
+     */
+    @Test public void commitIsForced() throws Exception {
+        LogFile log = tempLog();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        synchronized (log) {
+            assertTrue(log.forcedOffset >= log.currentOffset);
+        }
+        assertEquals(1, log.getForceCount());
+        assertTrue(log.segmentFile(0).length() >= log.currentOffset);
+    }
+
+    /**
+     * Concurrent commits share forces of the log. Also reports commit
+     * throughput for an increasing number of client threads.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            LogFile log = tempLog();
+            log.setGroupCommitDelay(200);
+            double rate = runCommits(log, threads, 50);
+            System.out.println("GroupCommitTest: " + threads + " threads, "
+                    + (long) rate + " commits/s, " + log.getForceCount() + " forces");
+            if (threads >= 4)
+                assertTrue(log.getForceCount() < threads * 50);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HeaderBitmapTest extends SimpleDbTestBase {
+
+    private static boolean used(byte[] bitmap, int i) {
+        return (bitmap[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /**
+     * The word-at-a-time searches agree with testing one slot at a time, for
+     * bitmaps of several densities and slot counts that are not a multiple of
+     * 8 or 64.
+     */
+    @Test public void matchesSlotBySlot() {
+        Random r = new Random(42);
+        int[] slotCounts = { 1, 7, 64, 65, 200, 504 };
+        for (int numSlots : slotCounts) {
+            for (int density = 0; density <= 4; density++) {
+                byte[] bitmap = new byte[(numSlots + 7) / 8];
+                int count = 0;
+                for (int i = 0; i < numSlots; i++) {
+                    if (r.nextInt(4) < density) {
+                        bitmap[i / 8] |= 1 << (i % 8);
+                        count++;
+                    }
+                }
+                assertEquals(count, HeaderBitmap.cardinality(bitmap, numSlots));
+
+                for (int from = 0; from <= numSlots; from++) {
+                    int next = -1, clear = -1, prev = -1;
+                    for (int i = from; i < numSlots; i++) {
+                        if (used(bitmap, i)) { next = i; break; }
+                    }
+                    for (int i = from; i < numSlots; i++) {
+                        if (!used(bitmap, i)) { clear = i; break; }
+                    }
+                    for (int i = Math.min(from, numSlots - 1); i >= 0; i--) {
+                        if (used(bitmap, i)) { prev = i; break; }
+                    }
+                    assertEquals(next, HeaderBitmap.nextSetBit(bitmap, from, numSlots));
+                    assertEquals(clear, HeaderBitmap.nextClearBit(bitmap, from, numSlots));
+                    assertEquals(prev, HeaderBitmap.prevSetBit(bitmap, Math.min(from, numSlots - 1)));
+                }
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeaderBitmapTest.class);
+    }
+}
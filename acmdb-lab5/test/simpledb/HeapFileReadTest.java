@@ -121,6 +121,85 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A memory-mapped heap file returns the same tuples as a plain one.
+     */
+    @Test
+    public void memoryMappedScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        java.io.File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1200,
+                1 << 16, null, tuples);
+        HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, UUID.randomUUID().toString());
+        assertTrue(mapped.isMemoryMapped());
+        assertEquals(3, mapped.numPages());
+
+        SystemTestUtil.matchTuples(mapped, tuples);
+
+        // pages past the end of the file are empty, as for plain heap files
+        HeapPage past = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 3));
+        assertFalse(past.iterator().hasNext());
+    }
+
+    /**
+     * A page read from the mapping is copied out of it only when it is first
+     * changed, and the tuples read before then keep their values when the
+     * page is written back.
+     */
+    @Test
+    public void mappedPageCopiedOnWrite() throws Exception {
+        java.io.File f = SystemTestUtil.createRandomHeapFileUnopened(2, 400,
+                1 << 16, null, new ArrayList<ArrayList<Integer>>());
+        HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, UUID.randomUUID().toString());
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        byte[] onDisk = ((HeapPage) new HeapFile(f, td).readPage(pid)).getPageData();
+
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertNull(page.oldData);
+        Tuple deleted = page.getTuple(0);
+        Tuple kept = page.getTuple(1);
+        page.deleteTuple(deleted);
+        assertArrayEquals(onDisk, page.oldData);
+
+        // the slot is zeroed on disk, which the mapping sees
+        mapped.writePage(page);
+        Tuple before = page.getBeforeImage().getTuple(0);
+        assertEquals(before.getField(0), deleted.getField(0));
+        assertEquals(before.getField(1), deleted.getField(1));
+        assertEquals(page.getBeforeImage().getTuple(1).getField(0), kept.getField(0));
+        assertNull(((HeapPage) mapped.readPage(pid)).getTuple(0));
+    }
+
+    /**
+     * Pages are found in the right chunk when the mapping is split up, and
+     * the mapping sees pages appended after it was created.
+     */
+    @Test
+    public void mappedChunks() throws Exception {
+        HeapFile fourPages = SystemTestUtil.createRandomHeapFile(2, 1600, null, null);
+        int pageSize = BufferPool.getPageSize();
+        FileHandle handle = new FileHandle(fourPages.getFile());
+        MappedFile mapped = new MappedFile(handle, pageSize, 3);
+        try {
+            for (int i = 0; i < 4; i++) {
+                byte[] expected = new byte[pageSize];
+                handle.read(expected, (long) i * pageSize);
+                byte[] actual = new byte[pageSize];
+                mapped.page(i).get(actual);
+                assertArrayEquals(expected, actual);
+            }
+            assertNull(mapped.page(4));
+            assertNull(mapped.page(5));
+
+            handle.append(HeapPage.createEmptyPageData());
+            assertNotNull(mapped.page(4));
+            assertNull(mapped.page(5));
+        } finally {
+            handle.close();
+        }
+    }
+
     /**
      * JUnit suite target
      */
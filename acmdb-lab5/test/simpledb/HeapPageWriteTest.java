@@ -1,8 +1,11 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -28,6 +31,47 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
     }
     
+    /**
+     * getPageData produces the same bytes as the DataOutputStream format the
+     * page constructor reads, both for tuples set up field by field and for
+     * tuples that are still views of the bytes they were read from.
+     */
+    @Test public void pageDataFormat() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        HeapPageId strPid = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+
+        HeapPage page = new HeapPage(strPid, HeapPage.createEmptyPageData());
+        Tuple[] added = new Tuple[3];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = new Tuple(td);
+            added[i].setField(0, new IntField(i * 1000 - 1));
+            added[i].setField(1, new StringField("value " + i, Type.STRING_LEN));
+            page.insertTuple(added[i]);
+        }
+        page.deleteTuple(added[1]);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        int headerSize = (page.getNumEmptySlots() + 2 + 7) / 8;
+        dos.writeByte(0x5); // slots 0 and 2
+        for (int i = 1; i < headerSize; i++) dos.writeByte(0);
+        for (int slot = 0; slot < 3; slot++) {
+            if (slot == 1) {
+                dos.write(new byte[td.getSize()]);
+                continue;
+            }
+            added[slot].getField(0).serialize(dos);
+            added[slot].getField(1).serialize(dos);
+        }
+        dos.write(new byte[BufferPool.getPageSize() - baos.size()]);
+        byte[] expected = baos.toByteArray();
+
+        assertArrayEquals(expected, page.getPageData());
+        HeapPage reread = new HeapPage(strPid, page.getPageData());
+        assertArrayEquals(expected, reread.getPageData());
+    }
+
     /**
      * Unit test for HeapPage.isDirty()
      */
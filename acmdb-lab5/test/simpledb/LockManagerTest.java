@@ -0,0 +1,253 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MS = 200;
+
+    private LockManager lm;
+    private PageId p0;
+    private PageId p1;
+
+    /**
+     * Grabs a lock on a separate thread so the test can observe whether it
+     * blocks.
+     */
+    private static class Grabber extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean acquired;
+        volatile Exception error;
+
+        Grabber(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(tid, pid, perm);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    private Grabber grab(TransactionId tid, PageId pid, Permissions perm) throws InterruptedException {
+        Grabber g = new Grabber(lm, tid, pid, perm);
+        g.start();
+        g.join(WAIT_MS);
+        return g;
+    }
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * A blocked writer is woken as soon as the reader releases the page.
+     */
+    @Test public void waiterWokenOnRelease() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+
+        Grabber writer = grab(t2, p0, Permissions.READ_WRITE);
+        assertFalse(writer.acquired);
+
+        lm.releaseLock(t1, p0);
+        writer.join(WAIT_MS);
+        assertTrue(writer.acquired);
+        assertTrue(lm.holdsExclusiveLock(t2, p0));
+    }
+
+    /**
+     * Readers that arrive after a queued writer wait behind it.
+     */
+    @Test public void fifoOrder() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+
+        Grabber writer = grab(t2, p0, Permissions.READ_WRITE);
+        Grabber reader = grab(t3, p0, Permissions.READ_ONLY);
+        assertFalse(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseAllLocks(t1);
+        writer.join(WAIT_MS);
+        assertTrue(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseAllLocks(t2);
+        reader.join(WAIT_MS);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * An upgrade is queued ahead of writers that hold nothing on the page.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+
+        Grabber writer = grab(t3, p0, Permissions.READ_WRITE);
+        Grabber upgrade = grab(t1, p0, Permissions.READ_WRITE);
+        assertFalse(writer.acquired);
+        assertFalse(upgrade.acquired);
+
+        lm.releaseAllLocks(t2);
+        upgrade.join(WAIT_MS);
+        assertTrue(upgrade.acquired);
+        assertFalse(writer.acquired);
+    }
+
+    /**
+     * The detector breaks a two-way deadlock by aborting the younger
+     * transaction; the older one gets its lock.
+     */
+    @Test public void detectorAbortsYoungest() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, p0, Permissions.READ_WRITE);
+        lm.acquireLock(younger, p1, Permissions.READ_WRITE);
+
+        Grabber a = grab(older, p1, Permissions.READ_WRITE);
+        Grabber b = grab(younger, p0, Permissions.READ_WRITE);
+        b.join(WAIT_MS);
+        assertTrue(b.error instanceof TransactionAbortedException);
+
+        lm.releaseAllLocks(younger);
+        a.join(WAIT_MS);
+        assertTrue(a.acquired);
+        assertNull(a.error);
+        assertEquals(1, lm.getDeadlockCount());
+        assertEquals(1, lm.getVictimCount());
+    }
+
+    /**
+     * Under wait-die a younger transaction never waits for an older one,
+     * while an older one waits for a younger one.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, p0, Permissions.READ_WRITE);
+        lm.acquireLock(younger, p1, Permissions.READ_WRITE);
+
+        Grabber dies = grab(younger, p0, Permissions.READ_WRITE);
+        assertTrue(dies.error instanceof TransactionAbortedException);
+
+        Grabber waits = grab(older, p1, Permissions.READ_WRITE);
+        assertFalse(waits.acquired);
+        assertNull(waits.error);
+        lm.releaseAllLocks(younger);
+        waits.join(WAIT_MS);
+        assertTrue(waits.acquired);
+    }
+
+    /**
+     * Under wound-wait an older requester aborts the younger holder, which
+     * notices, and is counted, at its next lock request. Until then the
+     * older one parks.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(younger, p0, Permissions.READ_WRITE);
+
+        Grabber wounder = grab(older, p0, Permissions.READ_WRITE);
+        assertFalse(wounder.acquired);
+        assertEquals(0, lm.getVictimCount());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Thread.State.WAITING, wounder.getState());
+            Thread.sleep(5);
+        }
+
+        Grabber wounded = grab(younger, p1, Permissions.READ_ONLY);
+        assertTrue(wounded.error instanceof TransactionAbortedException);
+        assertEquals(1, lm.getVictimCount());
+        wounded = grab(younger, p1, Permissions.READ_ONLY);
+        assertTrue(wounded.error instanceof TransactionAbortedException);
+        assertEquals(1, lm.getVictimCount());
+        lm.releaseAllLocks(younger);
+        wounder.join(WAIT_MS);
+        assertTrue(wounder.acquired);
+    }
+
+    /**
+     * Under the timeout policy a waiter gives up after the lock timeout.
+     */
+    @Test public void timeout() throws Exception {
+        lm.setDeadlockPolicy(DeadlockPolicy.TIMEOUT);
+        lm.setLockTimeout(50);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+
+        Grabber g = grab(t2, p0, Permissions.READ_ONLY);
+        assertTrue(g.error instanceof TransactionAbortedException);
+        assertFalse(lm.holdsLock(t2, p0));
+        assertEquals(1, lm.getVictimCount());
+    }
+
+    /**
+     * A page's lock state goes away with its last holder or waiter, and the
+     * page can be locked again afterwards.
+     */
+    @Test public void unusedStatesDropped() throws Exception {
+        lm.setDeadlockPolicy(DeadlockPolicy.TIMEOUT);
+        lm.setLockTimeout(50);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t1, p1, Permissions.READ_WRITE);
+        assertEquals(2, lm.getLockStateCount());
+
+        lm.releaseLock(t1, p0);
+        assertEquals(2, lm.getLockStateCount());
+        lm.releaseLock(t2, p0);
+        assertEquals(1, lm.getLockStateCount());
+
+        // a request that times out leaves nothing behind either
+        assertTrue(grab(t2, p1, Permissions.READ_ONLY).error instanceof TransactionAbortedException);
+        lm.releaseAllLocks(t1);
+        assertEquals(0, lm.getLockStateCount());
+
+        lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsExclusiveLock(t2, p0));
+        assertEquals(1, lm.getLockStateCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,273 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogRecoveryTest extends SimpleDbTestBase {
+
+    private static int countTuples(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static void insert(Transaction t, HeapFile hf, int n) throws Exception {
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    /**
+     * Throw away the buffer pool, as a crash would, and recover from the log
+     * with a new LogFile.
+     */
+    private static long crashAndRecover(int threads) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        LogFile log = new LogFile(Database.getLogFile().logFile);
+        log.setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        log.recover();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Updates of a committed transaction are redone when its page write got
+     * lost.
+     */
+    @Test public void redoCommitted() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        byte[] old = hf.readPage(pid).getPageData();
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 10);
+        t.commit();
+
+        // the write of page 1 never made it to disk
+        hf.writePage(new HeapPage(pid, old));
+        Database.getBufferPool().discardPage(pid);
+        assertEquals(600, countTuples(hf));
+
+        crashAndRecover(2);
+        assertEquals(610, countTuples(hf));
+    }
+
+    /**
+     * Pages stolen from transactions that aborted, or were still running at
+     * the crash, get their old contents back.
+     */
+    @Test public void undoLosers() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+        Database.resetBufferPool(2);
+
+        Transaction committed = new Transaction();
+        committed.start();
+        insert(committed, hf, 20);
+        committed.commit();
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        insert(aborted, hf, 1500);
+        aborted.abort();
+
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, hf, 1500);
+        assertEquals(true, Database.getBufferPool().getEvictionCount() > 0);
+
+        crashAndRecover(2);
+        assertEquals(620, countTuples(hf));
+    }
+
+    /**
+     * A checkpoint writes no pages itself and does not need the buffer pool
+     * monitor. The pages that were dirty are written out afterwards in the
+     * background, and recovery still goes back far enough in the log.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+        final BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 10);
+        assertEquals(1, bp.dirtyPages().size());
+
+        Thread checkpointer = new Thread() {
+            public void run() {
+                try {
+                    Database.getLogFile().logCheckpoint();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        synchronized (bp) {
+            checkpointer.start();
+            checkpointer.join(10000);
+            assertFalse(checkpointer.isAlive());
+        }
+        for (int i = 0; i < 100 && !bp.dirtyPages().isEmpty(); i++)
+            Thread.sleep(50);
+        assertEquals(0, bp.dirtyPages().size());
+
+        insert(t, hf, 10);
+        t.commit();
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, hf, 5);
+        Database.getLogFile().logCheckpoint();
+        bp.flushPages(running.getId());
+
+        crashAndRecover(2);
+        assertEquals(620, countTuples(hf));
+    }
+
+    /**
+     * Checkpoints let go of whole segments of the log, and recovery reads
+     * records that cross from one segment into the next.
+     */
+    @Test public void segmentedLog() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(4096);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+        for (int i = 0; i < 200; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insert(t, hf, 5);
+            t.commit();
+        }
+        assertTrue(log.logEnd() > 4 * 4096);
+        assertTrue(log.segmentFile(0).exists());
+
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, hf, 5);
+        Database.getBufferPool().flushPages(running.getId());
+        log.logCheckpoint();
+        assertFalse(log.segmentFile(0).exists());
+        assertTrue(log.segmentFile(log.logEnd() / 4096).exists());
+
+        crashAndRecover(2);
+        assertEquals(600 + 200 * 5, countTuples(hf));
+    }
+
+    /**
+     * Reports commit latencies while another thread keeps taking
+     * checkpoints.
+     */
+    @Test public void commitLatencyDuringCheckpoints() throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread checkpointer = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        Database.getLogFile().logCheckpoint();
+                        Thread.sleep(5);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        checkpointer.start();
+        int commits = 300;
+        long[] latencies = new long[commits];
+        try {
+            for (int i = 0; i < commits; i++) {
+                long start = System.nanoTime();
+                Transaction t = new Transaction();
+                t.start();
+                insert(t, hf, 1);
+                t.commit();
+                latencies[i] = System.nanoTime() - start;
+            }
+        } finally {
+            done.set(true);
+            checkpointer.join();
+        }
+        Arrays.sort(latencies);
+        System.out.println("LogRecoveryTest: commit latency during checkpoints, p50 "
+                + latencies[commits / 2] / 1000 + " us, p99 "
+                + latencies[commits * 99 / 100] / 1000 + " us, max "
+                + latencies[commits - 1] / 1000 + " us");
+        assertEquals(100 + commits, countTuples(hf));
+    }
+
+    /**
+     * Crash in the middle of a workload of many small transactions that
+     * touch pages all over a table, and report how long restart takes with
+     * one recovery thread and with several.
+     */
+    @Test public void restartTime() throws Exception {
+        int pages = 40;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        Random r = new Random(1);
+        BufferPool bp = Database.getBufferPool();
+        int transactions = 300;
+        Transaction running = null;
+        for (int i = 0; i <= transactions; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 4; j++) {
+                HeapPageId pid = new HeapPageId(hf.getId(), r.nextInt(pages));
+                HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+                Iterator<Tuple> it = page.iterator();
+                if (it.hasNext()) bp.deleteTuple(t.getId(), it.next());
+            }
+            if (i == transactions / 2) {
+                Database.getLogFile().logCheckpoint();
+            }
+            if (i == transactions) {
+                running = t;
+            } else if (i % 10 == 9) {
+                t.abort();
+            } else {
+                t.commit();
+            }
+        }
+        // the running transaction's pages reach disk before the crash
+        bp.flushPages(running.getId());
+        assertEquals(true, Database.getLogFile().isActive(running.getId()));
+        int expected = 504 * pages - 4 * (transactions - transactions / 10);
+
+        long logEnd = Database.getLogFile().logEnd();
+        long serial = crashAndRecover(1);
+        assertEquals(expected, countTuples(hf));
+        int threads = 4;
+        long parallel = crashAndRecover(threads);
+        assertEquals(expected, countTuples(hf));
+        System.out.println("LogRecoveryTest: log ends at " + logEnd
+                + ", restart took " + serial / 1000000 + " ms with 1 thread, "
+                + parallel / 1000000 + " ms with " + threads);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecoveryTest.class);
+    }
+}
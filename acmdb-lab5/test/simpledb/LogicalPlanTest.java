@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HashMap<String, TableStats> stats;
+    private int tableId;
+
+    /**
+     * Create a B+ tree table named T keyed on its first field, c0.
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(3, 20000, 10000, null, tuples, 0);
+        BTreeFile bf = new BTreeFile(unnamed.getFile(), 0, Utility.getTupleDesc(3, "c"));
+        Database.getCatalog().addTable(bf, "T");
+        tableId = bf.getId();
+        stats = new HashMap<String, TableStats>();
+        stats.put("T", new TableStats(tableId, 1000));
+    }
+
+    /** Plan a query over T with the given filters, each "field op constant" */
+    private DbIterator plan(Object... filters) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableId, "t");
+        for (int i = 0; i < filters.length; i += 3)
+            lp.addFilter("t." + filters[i], (Predicate.Op) filters[i + 1], filters[i + 2].toString());
+        lp.addProjectField("null.*", null);
+        return lp.physicalPlan(new TransactionId(), stats, false);
+    }
+
+    /** @return the scan at the bottom of a single-table plan */
+    private static DbIterator scanOf(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    private static int count(DbIterator plan) throws Exception {
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        return count;
+    }
+
+    private int expected(int field, int lo, int hi) {
+        int count = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(field) >= lo && t.get(field) <= hi) count++;
+        }
+        return count;
+    }
+
+    /**
+     * An equality filter on the key is answered by a B+ tree lookup.
+     */
+    @Test public void pointQueryUsesIndex() throws Exception {
+        int v = tuples.get(0).get(0);
+        DbIterator p = plan("c0", Predicate.Op.EQUALS, v);
+        assertTrue(scanOf(p) instanceof BTreeScan);
+        assertTrue(new QueryPlanVisualizer().getQueryPlanTree(p).contains("index scan(T t)"));
+        assertEquals(expected(0, v, v), count(p));
+    }
+
+    /**
+     * Two filters bounding the key from both ends make one range scan, and
+     * filters on other fields still apply.
+     */
+    @Test public void rangeUsesIndex() throws Exception {
+        DbIterator p = plan("c0", Predicate.Op.GREATER_THAN, 5000, "c0", Predicate.Op.LESS_THAN_OR_EQ, 5100);
+        assertTrue(scanOf(p) instanceof BTreeScan);
+        assertEquals(expected(0, 5001, 5100), count(p));
+
+        p = plan("c0", Predicate.Op.GREATER_THAN_OR_EQ, 5000, "c0", Predicate.Op.LESS_THAN, 5100,
+                "c1", Predicate.Op.LESS_THAN, 0);
+        assertTrue(scanOf(p) instanceof BTreeScan);
+        assertEquals(0, count(p));
+    }
+
+    /**
+     * A filter that selects most of the table, or one not on the key, is
+     * cheaper as a sequential scan.
+     */
+    @Test public void otherQueriesUseSeqScan() throws Exception {
+        DbIterator p = plan("c0", Predicate.Op.GREATER_THAN_OR_EQ, 100);
+        assertTrue(scanOf(p) instanceof SeqScan);
+        assertEquals(expected(0, 100, Integer.MAX_VALUE), count(p));
+
+        int v = tuples.get(0).get(1);
+        p = plan("c1", Predicate.Op.EQUALS, v);
+        assertTrue(scanOf(p) instanceof SeqScan);
+        assertEquals(expected(1, v, v), count(p));
+
+        p = plan("c0", Predicate.Op.NOT_EQUALS, 5000);
+        assertTrue(scanOf(p) instanceof SeqScan);
+    }
+
+    /**
+     * A heap file has no index to use.
+     */
+    @Test public void heapFileUsesSeqScan() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 1000, 100, null, null, "c");
+        Database.getCatalog().addTable(hf, "H");
+        stats.put("H", new TableStats(hf.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "h");
+        lp.addFilter("h.c0", Predicate.Op.EQUALS, "5");
+        lp.addProjectField("null.*", null);
+        assertTrue(scanOf(lp.physicalPlan(new TransactionId(), stats, false)) instanceof SeqScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCodecsTest extends SimpleDbTestBase {
+
+    private static void assertRoundTrip(Page page, int tag) throws Exception {
+        assertEquals(tag, PageCodecs.tagOf(page));
+        PageCodec codec = PageCodecs.get(tag);
+        PageId pid = codec.readId(page.getId().serialize());
+        assertEquals(page.getId(), pid);
+        Page copy = codec.readPage(pid, page.getPageData());
+        assertSame(page.getClass(), copy.getClass());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * Every page type of HeapFile and BTreeFile comes back from its codec
+     * with the same id and data.
+     */
+    @Test public void builtInPages() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPage heap = new HeapPage(new HeapPageId(-1, 3), HeapPage.createEmptyPageData());
+        heap.insertTuple(Utility.getHeapTuple(7, 2));
+        assertRoundTrip(heap, PageCodecs.HEAP_PAGE);
+
+        File f = File.createTempFile("codec", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 1);
+        int id = bf.getId();
+        assertRoundTrip(new BTreeLeafPage(new BTreePageId(id, 1, BTreePageId.LEAF),
+                BTreePage.createEmptyPageData(), 1), PageCodecs.BTREE_LEAF_PAGE);
+        assertRoundTrip(new BTreeInternalPage(new BTreePageId(id, 2, BTreePageId.INTERNAL),
+                BTreePage.createEmptyPageData(), 1), PageCodecs.BTREE_INTERNAL_PAGE);
+        assertRoundTrip(new BTreeHeaderPage(new BTreePageId(id, 3, BTreePageId.HEADER),
+                BTreeHeaderPage.createEmptyPageData()), PageCodecs.BTREE_HEADER_PAGE);
+        assertRoundTrip(new BTreeRootPtrPage(BTreeRootPtrPage.getId(id),
+                BTreeRootPtrPage.createEmptyPageData()), PageCodecs.BTREE_ROOT_PTR_PAGE);
+    }
+
+    /**
+     * Log records identify pages by tag, and read them back through the
+     * registry.
+     */
+    @Test public void logRecords() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(new HeapPageId(-1, 0), HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+
+        File f = File.createTempFile("codec", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        log.segmentFile(0).deleteOnExit();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.currentOffset;
+        log.setDeltaLogging(false);
+        log.logWrite(tid, page.getBeforeImage(), page);
+        log.force();
+
+        DataInputStream in = log.readLog(start);
+        assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+        assertEquals(tid.getId(), in.readLong());
+        Page before = log.readPageData(in);
+        Page after = log.readPageData(in);
+        in.close();
+        assertArrayEquals(page.getBeforeImage().getPageData(), before.getPageData());
+        assertArrayEquals(page.getPageData(), after.getPageData());
+    }
+
+    /**
+     * Tags are range checked and can not be taken twice.
+     */
+    @Test public void registration() {
+        PageCodec codec = new PageCodec() {
+            public PageId readId(int[] data) {
+                return null;
+            }
+
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                return null;
+            }
+        };
+        try {
+            PageCodecs.register(PageCodecs.HEAP_PAGE, BTreeLeafPage.class, codec);
+            fail("tag of HeapPage registered twice");
+        } catch (IllegalArgumentException e) {}
+        try {
+            PageCodecs.register(PageCodecs.MAX_TAG + 1, HeapPage.class, codec);
+            fail("tag out of range");
+        } catch (IllegalArgumentException e) {}
+        try {
+            PageCodecs.get(PageCodecs.MAX_TAG);
+            fail("no codec under the largest tag");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecsTest.class);
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    /**
+     * Undo and redo turn either image into the other, also after the delta
+     * has been written out and read back.
+     */
+    @Test public void undoRedo() throws Exception {
+        Random r = new Random(7);
+        byte[] before = new byte[4096];
+        r.nextBytes(before);
+        byte[] after = before.clone();
+        for (int i = 0; i < 20; i++) after[r.nextInt(after.length)] ^= 0x5a;
+
+        PageDelta delta = PageDelta.diff(before, after);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(baos));
+        assertEquals(delta.serializedSize(), baos.size());
+        PageDelta read = PageDelta.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+
+        for (PageDelta d : new PageDelta[] { delta, read }) {
+            byte[] data = before.clone();
+            d.redo(data);
+            assertArrayEquals(after, data);
+            d.undo(data);
+            assertArrayEquals(before, data);
+        }
+    }
+
+    /**
+     * Changes a few bytes apart share a range, changes far apart do not.
+     */
+    @Test public void mergesNearbyChanges() {
+        byte[] before = new byte[100];
+        byte[] after = before.clone();
+        after[10] = 1;
+        after[10 + PageDelta.MERGE_GAP] = 1;
+        after[60] = 1;
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.numRanges());
+        assertEquals(0, PageDelta.diff(before, before.clone()).numRanges());
+    }
+
+    /**
+     * A one-tuple insert into a heap page costs a small fraction of the log
+     * space two full page images take.
+     */
+    @Test public void logVolume() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(-1, 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        // an empty before image is always logged in full
+        before.insertTuple(Utility.getHeapTuple(0, 2));
+        after.insertTuple(Utility.getHeapTuple(0, 2));
+        after.insertTuple(Utility.getHeapTuple(1, 2));
+
+        File f = File.createTempFile("pagedelta", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        log.segmentFile(0).deleteOnExit();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+
+        long start = log.currentOffset;
+        long deltaSize = log.logWrite(tid, before, after) - start;
+
+        log.setDeltaLogging(false);
+        start = log.currentOffset;
+        long fullSize = log.logWrite(tid, before, after) - start;
+
+        assertTrue(fullSize > 2 * BufferPool.getPageSize());
+        assertTrue(deltaSize * 10 < fullSize);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
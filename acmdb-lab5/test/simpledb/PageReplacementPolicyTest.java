@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final PageReplacementPolicy.EvictionFilter ANY = pid -> true;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /** Run r in another thread and wait for it to finish */
+    private static void inOtherThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * CLOCK gives a referenced page a second chance before evicting it.
+     */
+    @Test public void clockSecondChance() {
+        ClockReplacementPolicy policy = new ClockReplacementPolicy(3);
+        for (int i = 0; i < 3; i++) policy.pageLoaded(pid(i));
+
+        // first sweep clears every reference bit and evicts the first page
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        policy.pageEvicted(pid(0));
+        policy.pageLoaded(pid(3));
+
+        // page 1 is referenced again, so page 2 goes next
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+        assertEquals(3, policy.size());
+    }
+
+    /**
+     * A hit counts even if it happens while another thread is choosing a
+     * victim, which holds the policy's lock while it asks the filter.
+     */
+    @Test public void clockHitDuringSweep() {
+        ClockReplacementPolicy policy = new ClockReplacementPolicy(3);
+        for (int i = 0; i < 3; i++) policy.pageLoaded(pid(i));
+
+        // the first turn clears every bit; page 1 is hit while page 0 is
+        // considered on the second, so the hand passes it by
+        PageId victim = policy.chooseVictim(pid -> {
+            if (!pid.equals(pid(0))) return true;
+            inOtherThread(() -> policy.pageAccessed(pid(1)));
+            return false;
+        });
+        assertEquals(pid(2), victim);
+    }
+
+    /**
+     * A hit made while the 2Q lock is held is applied before the next victim
+     * is chosen.
+     */
+    @Test public void twoQueueHitDuringSweep() {
+        TwoQueueReplacementPolicy policy = new TwoQueueReplacementPolicy(8);
+        // cycle pages 0 and 1 through A1in and A1out into Am
+        for (int i = 0; i < 2; i++) policy.pageLoaded(pid(i));
+        for (int i = 0; i < 2; i++) policy.pageEvicted(policy.chooseVictim(ANY));
+        for (int i = 0; i < 2; i++) policy.pageLoaded(pid(i));
+
+        // page 0 is least recently used, until it is hit during a sweep
+        assertNull(policy.chooseVictim(pid -> {
+            if (pid.equals(pid(0))) inOtherThread(() -> policy.pageAccessed(pid(0)));
+            return false;
+        }));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * The filter can veto every candidate.
+     */
+    @Test public void noEvictablePage() {
+        ClockReplacementPolicy clock = new ClockReplacementPolicy(2);
+        TwoQueueReplacementPolicy twoQ = new TwoQueueReplacementPolicy(2);
+        for (int i = 0; i < 2; i++) {
+            clock.pageLoaded(pid(i));
+            twoQ.pageLoaded(pid(i));
+        }
+        assertNull(clock.chooseVictim(pid -> false));
+        assertNull(twoQ.chooseVictim(pid -> false));
+    }
+
+    /**
+     * A page that is re-referenced after leaving A1in is promoted to Am and
+     * survives a long run of pages that are touched only once.
+     */
+    @Test public void twoQueueScanResistance() {
+        int capacity = 8;
+        TwoQueueReplacementPolicy policy = new TwoQueueReplacementPolicy(capacity);
+        PageId hot = pid(0);
+
+        policy.pageLoaded(hot);
+        for (int i = 1; i < capacity; i++) policy.pageLoaded(pid(i));
+        // the hot page is the oldest page in A1in and gets evicted first
+        assertEquals(hot, policy.chooseVictim(ANY));
+        policy.pageEvicted(hot);
+        // it is still remembered in A1out, so reloading it promotes it to Am
+        policy.pageLoaded(hot);
+
+        // a scan over many pages never evicts the hot page
+        for (int i = capacity; i < 100 * capacity; i++) {
+            PageId victim = policy.chooseVictim(ANY);
+            assertFalse(hot.equals(victim));
+            policy.pageEvicted(victim);
+            policy.pageLoaded(pid(i));
+            policy.pageAccessed(hot);
+        }
+        assertEquals(capacity, policy.size());
+    }
+
+    /**
+     * A1in can not be larger than the pool it is part of.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void twoQueueA1inFitsPool() {
+        new TwoQueueReplacementPolicy(4, 5, 2);
+    }
+
+    /**
+     * The buffer pool counts hits, misses and evictions.
+     */
+    @Test public void bufferPoolStatistics() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        int numPages = hf.numPages();
+        BufferPool bp = Database.resetBufferPool(2, new ClockReplacementPolicy(2));
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < numPages; i++) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), numPages - 1), Permissions.READ_ONLY);
+
+        assertEquals(1, bp.getHitCount());
+        assertEquals(numPages, bp.getMissCount());
+        assertEquals(numPages - 2, bp.getEvictionCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private static SecondaryIndex createIndex(int tableid, int field) throws Exception {
+        File f = File.createTempFile("secondary", ".dat");
+        f.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index = SecondaryIndex.create(tid, tableid, field, f, SystemTestUtil.getUUID());
+        Database.getBufferPool().transactionComplete(tid);
+        return index;
+    }
+
+    /** Count the tuples an index scan returns, checking each against the predicate */
+    private static int count(int tableid, int field, Predicate.Op op, int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, tableid, field, new IndexPredicate(op, new IntField(value)));
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(true, t.getField(field).compare(op, new IntField(value)));
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static int expected(ArrayList<ArrayList<Integer>> tuples, int field, Predicate.Op op, int value) {
+        int count = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(field)).compare(op, new IntField(value))) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Lookups through an index on a heap file return the same tuples as a
+     * filtered scan.
+     */
+    @Test public void heapFileLookups() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, 200, null, tuples);
+        createIndex(hf.getId(), 1);
+
+        for (int v = 0; v < 200; v += 37) {
+            assertEquals(expected(tuples, 1, Predicate.Op.EQUALS, v), count(hf.getId(), 1, Predicate.Op.EQUALS, v));
+            assertEquals(expected(tuples, 1, Predicate.Op.LESS_THAN, v), count(hf.getId(), 1, Predicate.Op.LESS_THAN, v));
+            assertEquals(expected(tuples, 1, Predicate.Op.GREATER_THAN_OR_EQ, v),
+                    count(hf.getId(), 1, Predicate.Op.GREATER_THAN_OR_EQ, v));
+        }
+    }
+
+    /**
+     * Inserts and deletes through the buffer pool keep the index up to
+     * date, and an abort takes the index changes back with the table's.
+     */
+    @Test public void maintainedByBufferPool() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, 200, null, null);
+        createIndex(hf.getId(), 1);
+        BufferPool bp = Database.getBufferPool();
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = Utility.getHeapTuple(new int[] { 1, 5000 });
+        bp.insertTuple(t.getId(), hf.getId(), tup);
+        t.commit();
+        assertEquals(1, count(hf.getId(), 1, Predicate.Op.EQUALS, 5000));
+
+        t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 2, 5000 }));
+        t.abort();
+        assertEquals(1, count(hf.getId(), 1, Predicate.Op.EQUALS, 5000));
+
+        t = new Transaction();
+        t.start();
+        IndexScan scan = new IndexScan(t.getId(), hf.getId(), 1,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(5000)));
+        scan.open();
+        bp.deleteTuple(t.getId(), scan.next());
+        scan.close();
+        t.commit();
+        assertEquals(0, count(hf.getId(), 1, Predicate.Op.EQUALS, 5000));
+    }
+
+    /**
+     * An index on a non-key field of a B+ tree file finds tuples by their
+     * key, including tuples that share a key.
+     */
+    @Test public void btreeFileLookups() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, 500, null, tuples, 0);
+        createIndex(bf.getId(), 1);
+
+        for (int v = 0; v < 500; v += 61) {
+            assertEquals(expected(tuples, 1, Predicate.Op.EQUALS, v), count(bf.getId(), 1, Predicate.Op.EQUALS, v));
+            assertEquals(expected(tuples, 1, Predicate.Op.LESS_THAN_OR_EQ, v),
+                    count(bf.getId(), 1, Predicate.Op.LESS_THAN_OR_EQ, v));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -214,6 +214,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void writePages(List<Page> pages) throws IOException {
+            throw new RuntimeException("not implemented");
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -380,6 +384,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.fileFor(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
@@ -4,6 +4,8 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +114,23 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Abort drops the pages the transaction asked for with write permission
+   * from the pool; pages it only read stay where they are.
+   */
+  @Test public void abortDropsWriteSetOnly() throws Exception {
+    Page read = bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    HeapPage written = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    written.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    written.markDirty(true, tid1);
+    bp.transactionComplete(tid1, false);
+
+    assertSame(read, bp.getPage(tid2, p0, Permissions.READ_ONLY));
+    HeapPage reread = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    assertNotSame(written, reread);
+    assertEquals(written.getNumEmptySlots() + 1, reread.getNumEmptySlots());
+  }
+
   /**
    * JUnit suite target
    */
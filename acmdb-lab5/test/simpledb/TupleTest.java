@@ -29,6 +29,32 @@ public class TupleTest extends SimpleDbTestBase {
         assertEquals(new IntField(37), tup.getField(1));
     }
 
+    /**
+     * A tuple over serialized bytes decodes its fields on demand, and set
+     * fields take precedence over the bytes.
+     */
+    @Test public void lazyFields() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(8 + td.getSize());
+        buf.putInt(0, 7);
+        buf.putInt(8, 42);
+        buf.putInt(12, 2);
+        buf.put(16, (byte) 'h');
+        buf.put(17, (byte) 'i');
+        buf.putInt(8 + td.getFieldOffset(2), -5);
+
+        Tuple tup = new Tuple(td, buf, 8);
+        assertEquals(new IntField(-5), tup.getField(2));
+        assertEquals(new StringField("hi", Type.STRING_LEN), tup.getField(1));
+        assertEquals(new IntField(42), tup.getField(0));
+
+        tup.setField(0, new IntField(1));
+        assertEquals(new IntField(1), tup.getField(0));
+        tup.materialize();
+        assertEquals(new IntField(1), tup.getField(0));
+        assertEquals(new IntField(-5), tup.getField(2));
+    }
+
     /**
      * Unit test for Tuple.getTupleDesc()
      */
@@ -1,6 +1,7 @@
 package simpledb.systemtest;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 import simpledb.*;
 
@@ -38,6 +39,44 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** Inserts more pages than the buffer pool holds, so that dirty pages
+     * have to be stolen, then aborts. The stolen pages must be restored
+     * from the log.
+     */
+    @Test public void testAbortAfterSteal()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*4, null, null);
+        int pages = f.numPages();
+        Database.resetBufferPool(2);
+
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504*6; i++) tuples.add(Utility.getHeapTuple(i, 2));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), tuples), f.getId());
+        insert.open();
+        assertEquals(504*6, ((IntField)insert.next().getField(0)).getValue());
+        insert.close();
+        assertTrue(Database.getBufferPool().getEvictionCount() > 0);
+        t.transactionComplete(true);
+
+        // nothing the transaction wrote out survives the abort
+        t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        assertEquals(512*4, count);
+        assertTrue(f.numPages() > pages);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);